@@ -1,4 +1,6 @@
 import com.sun.javafx.tk.Toolkit;
+import javafx.application.Platform;
+import javafx.beans.binding.Bindings;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
@@ -11,11 +13,15 @@ import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Paint;
 import javafx.scene.text.Font;
 import javafx.stage.FileChooser;
+import text.DocumentSearch;
+import text.Snapshot;
 import view.TextView;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Controller {
 
@@ -25,6 +31,18 @@ public class Controller {
     @FXML
     TextField searchInput;
 
+    @FXML
+    Label matchCount;
+
+    @FXML
+    CheckBox regexCheckBox;
+
+    @FXML
+    TextField replaceInput;
+
+    @FXML
+    TextField lineInput;
+
     @FXML
     ColorPicker colorPicker;
 
@@ -34,6 +52,12 @@ public class Controller {
     @FXML
     ChoiceBox<String> fontChoiceBox;
 
+    @FXML
+    ListView<DocumentSearch.Hit<Tab>> searchResults;
+
+    // running search in all open documents, or null if there is none
+    private DocumentSearch<Tab> documentSearch;
+
     @FXML
     private void initialize() {
         tabPane.getSelectionModel().selectedItemProperty().addListener((obs, o, n) -> {
@@ -81,6 +105,30 @@ public class Controller {
             }
         });
 
+        // results of a search in all documents are only shown while there are some
+        searchResults.visibleProperty().bind(Bindings.isNotEmpty(searchResults.getItems()));
+        searchResults.managedProperty().bind(searchResults.visibleProperty());
+        searchResults.setCellFactory(list -> new ListCell<>() {
+            @Override
+            protected void updateItem(DocumentSearch.Hit<Tab> hit, boolean empty) {
+                super.updateItem(hit, empty);
+                setText(empty || hit == null ? null
+                        : hit.document().getText() + ":" + (hit.line() + 1) + ": " + hit.context());
+            }
+        });
+        searchResults.setOnMouseClicked(e -> {
+            DocumentSearch.Hit<Tab> hit = searchResults.getSelectionModel().getSelectedItem();
+            if (hit != null) {
+                tabPane.getSelectionModel().select(hit.document());
+                getView(hit.document()).handleSelectMatch(hit.position(), searchInput.getText().length());
+            }
+        });
+        // results of an older query are of no use
+        searchInput.textProperty().addListener((obs, o, n) -> {
+            cancelDocumentSearch();
+            searchResults.getItems().clear();
+        });
+
         ObservableList<String> fontNames = FXCollections.observableArrayList(Toolkit.getToolkit().getFontLoader().getFontNames());
         fontChoiceBox.setItems(fontNames);
     }
@@ -107,7 +155,7 @@ public class Controller {
         scrollBar.setOrientation(Orientation.VERTICAL);
         scrollBar.maxHeightProperty().bind(view.heightProperty());
 
-        scrollBar.valueProperty().addListener((obs, o, n) -> view.scroll(n.intValue()));
+        scrollBar.valueProperty().addListener((obs, o, n) -> view.scroll(n.longValue()));
         view.setOnScroll(e -> {
             scrollBar.setMax(view.getTextLength());
             if (e.getDeltaY() < 0) {
@@ -125,6 +173,16 @@ public class Controller {
         StackPane.setAlignment(scrollBar, Pos.TOP_RIGHT);
         Tab tab = new Tab(file.getName(), stackPane);
         tab.setTooltip(new Tooltip(file.getAbsolutePath()));
+        tab.setOnClosed(e -> {
+            // the text of a closed document can't be read anymore
+            cancelDocumentSearch();
+            searchResults.getItems().removeIf(hit -> hit.document() == tab);
+            try {
+                view.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
         tabPane.getTabs().add(tab);
         tabPane.getSelectionModel().select(tab);
     }
@@ -143,6 +201,22 @@ public class Controller {
         System.out.println("onMenuSaveAll");
     }
 
+    @FXML
+    protected void onMenuUndo() {
+        TextView activeView = getActiveView();
+        if (activeView != null) {
+            activeView.handleUndo();
+        }
+    }
+
+    @FXML
+    protected void onMenuRedo() {
+        TextView activeView = getActiveView();
+        if (activeView != null) {
+            activeView.handleRedo();
+        }
+    }
+
     @FXML
     protected void onMenuCopy() {
         TextView activeView = getActiveView();
@@ -169,12 +243,91 @@ public class Controller {
 
     @FXML
     protected void onSearchNext() {
+        TextView activeView = getActiveView();
+        if (activeView != null && regexCheckBox.isSelected()) {
+            activeView.handleRegexSearch(searchInput.getText(), true, this::showRegexSearchResult);
+        } else if (activeView != null) {
+            showSearchResult(activeView, activeView.handleSearch(searchInput.getText()));
+        }
+    }
+
+    @FXML
+    protected void onSearchPrevious() {
+        TextView activeView = getActiveView();
+        if (activeView != null && regexCheckBox.isSelected()) {
+            activeView.handleRegexSearch(searchInput.getText(), false, this::showRegexSearchResult);
+        } else if (activeView != null) {
+            showSearchResult(activeView, activeView.handleSearchPrevious(searchInput.getText()));
+        }
+    }
+
+    private void showSearchResult(TextView view, boolean found) {
+        searchInput.setStyle(found ? "-fx-text-fill: green;" : "-fx-text-fill: red;");
+        matchCount.setText(view.getMatchCount() + " matches");
+    }
+
+    /**
+     * @param count Number of matches, or -1 if the regular expression is invalid
+     */
+    private void showRegexSearchResult(int count) {
+        searchInput.setStyle(count > 0 ? "-fx-text-fill: green;" : "-fx-text-fill: red;");
+        matchCount.setText(count < 0 ? "invalid expression" : count + " matches");
+    }
+
+    @FXML
+    protected void onFindInAllDocuments() {
+        cancelDocumentSearch();
+        searchResults.getItems().clear();
+        String query = searchInput.getText();
+        if (query.isEmpty()) {
+            return;
+        }
+        Map<Tab, Snapshot> documents = new LinkedHashMap<>();
+        for (Tab tab : tabPane.getTabs()) {
+            documents.put(tab, getView(tab).getSnapshot());
+        }
+        DocumentSearch<Tab> search = new DocumentSearch<>(query);
+        documentSearch = search;
+        search.start(documents, hits -> Platform.runLater(() -> {
+            // the search may have been cancelled after it reported the matches
+            if (documentSearch == search) {
+                searchResults.getItems().addAll(hits);
+            }
+        }), () -> Platform.runLater(() -> {
+            if (documentSearch == search) {
+                documentSearch = null;
+                searchInput.setStyle(search.count() > 0 ? "-fx-text-fill: green;" : "-fx-text-fill: red;");
+                matchCount.setText(search.count() + " matches in " + documents.size() + " documents");
+            }
+        }));
+    }
+
+    private void cancelDocumentSearch() {
+        if (documentSearch != null) {
+            documentSearch.cancel();
+            documentSearch = null;
+        }
+    }
+
+    @FXML
+    protected void onReplaceAll() {
+        TextView activeView = getActiveView();
+        if (activeView != null) {
+            int count = activeView.handleReplaceAll(searchInput.getText(), replaceInput.getText());
+            matchCount.setText(count + " replaced");
+        }
+    }
+
+    @FXML
+    protected void onGoToLine() {
         TextView activeView = getActiveView();
         if (activeView != null) {
-            if (activeView.handleSearch(searchInput.getText())) {
-                searchInput.setStyle("-fx-text-fill: green;");
+            // lines are numbered from 1 in the input
+            String input = lineInput.getText();
+            if (input.matches("\\d+") && activeView.scrollToLine(Long.parseLong(input) - 1)) {
+                lineInput.setStyle("-fx-text-fill: green;");
             } else {
-                searchInput.setStyle("-fx-text-fill: red;");
+                lineInput.setStyle("-fx-text-fill: red;");
             }
         }
     }
@@ -203,9 +356,13 @@ public class Controller {
 
     private TextView getActiveView() {
         if (!tabPane.getSelectionModel().isEmpty()) {
-            StackPane sp = (StackPane) tabPane.getSelectionModel().getSelectedItem().getContent();
-            return (TextView) sp.getChildrenUnmodifiable().get(0);
+            return getView(tabPane.getSelectionModel().getSelectedItem());
         }
         return null;
     }
+
+    private static TextView getView(Tab tab) {
+        StackPane sp = (StackPane) tab.getContent();
+        return (TextView) sp.getChildrenUnmodifiable().get(0);
+    }
 }
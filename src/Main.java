@@ -2,8 +2,8 @@ import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import text.Journal;
 
-import java.io.File;
 import java.io.IOException;
 
 public class Main extends Application {
@@ -19,7 +19,7 @@ public class Main extends Application {
     @Override
     public void stop() throws Exception {
         super.stop();
-        //new File(".scratch").delete();
+        Journal.closeAll();
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,315 @@
+package text;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Append-only buffer holding all text inserted into a piece list.
+ * <p>
+ * Text is kept outside of the Java heap, in chunks of direct memory. Optionally, the chunks are mapped from a spill
+ * file belonging to a single piece list instead, so the operating system can write them back to the file under
+ * memory pressure and large insertions don't need to stay in memory. Chunks are never moved when the buffer grows,
+ * so earlier snapshots keep reading them.
+ * <p>
+ * The buffer itself is only used by the thread editing the piece list. Snapshots read it through a {@link View},
+ * which keeps the chunks and line breaks of the moment it was created, so they can be read from any thread.
+ * <p>
+ * Readers on other threads, e.g. a running search, {@link View#retain() retain} their view for as long as they read
+ * it. The storage is released once the buffer is closed and the last of them is done: the spill file is truncated,
+ * which frees its pages at once, and deleted. Direct memory can only be returned by the garbage collector, which
+ * frees the chunks once no view references them anymore.
+ */
+final class AddBuffer implements Closeable {
+    // number of characters in a chunk
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    // null if the chunks are not backed by a file
+    private final Path spillFile;
+    private final FileChannel channel;
+
+    // views retained by readers and not released yet, guarded by this
+    private int readers;
+    private boolean closed;
+
+    // replaced when growing, views keep the array they were created with
+    private CharBuffer[] chunks = new CharBuffer[0];
+    private int length;
+
+    // sorted offsets of all line breaks. Entries are only appended, so views share the array up to their count.
+    private int[] lineBreaks;
+    private int lineBreakCount;
+
+    /**
+     * Creates a buffer in direct memory.
+     */
+    AddBuffer() {
+        this.spillFile = null;
+        this.channel = null;
+        this.lineBreaks = new int[256];
+    }
+
+    /**
+     * Creates a buffer whose chunks are mapped from a file, which is created or emptied.
+     */
+    AddBuffer(Path spillFile) throws IOException {
+        this.spillFile = spillFile;
+        this.channel = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.lineBreaks = new int[256];
+    }
+
+    /**
+     * Appends a character.
+     *
+     * @return the offset of the character in this buffer
+     */
+    int append(char character) {
+        ensureCapacity(length + 1);
+        chunks[length >>> CHUNK_BITS].put(length & (CHUNK_SIZE - 1), character);
+        return commit(1);
+    }
+
+    /**
+     * Appends a string.
+     *
+     * @return the offset of the first character in this buffer
+     */
+    int append(String text) {
+        ensureCapacity(length + text.length());
+        for (int i = 0; i < text.length(); ) {
+            int offset = length + i;
+            int index = offset & (CHUNK_SIZE - 1);
+            int n = Math.min(text.length() - i, CHUNK_SIZE - index);
+            chunks[offset >>> CHUNK_BITS].duplicate().position(index).put(text, i, i + n);
+            i += n;
+        }
+        return commit(text.length());
+    }
+
+    private int commit(int count) {
+        int offset = length;
+        for (int i = offset; i < offset + count; i++) {
+            if (charAt(i) == '\n') {
+                if (lineBreakCount == lineBreaks.length) {
+                    lineBreaks = Arrays.copyOf(lineBreaks, lineBreakCount * 2);
+                }
+                lineBreaks[lineBreakCount++] = i;
+            }
+        }
+        length += count;
+        return offset;
+    }
+
+    /**
+     * Allocates or maps further chunks until the buffer can hold the given number of characters.
+     */
+    private void ensureCapacity(int capacity) {
+        CharBuffer[] c = chunks;
+        if ((long) c.length << CHUNK_BITS >= capacity) {
+            return;
+        }
+        int count = (int) (((long) capacity + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        CharBuffer[] grown = Arrays.copyOf(c, count);
+        try {
+            for (int i = c.length; i < count; i++) {
+                if (channel == null) {
+                    grown[i] = ByteBuffer.allocateDirect(CHUNK_SIZE * Character.BYTES).asCharBuffer();
+                    continue;
+                }
+                // mapping a region behind the end of the file extends the file
+                long start = (long) i * CHUNK_SIZE * Character.BYTES;
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) CHUNK_SIZE * Character.BYTES)
+                        .asCharBuffer();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        chunks = grown;
+    }
+
+    private char charAt(int offset) {
+        return chunks[offset >>> CHUNK_BITS].get(offset & (CHUNK_SIZE - 1));
+    }
+
+    /**
+     * @return a read-only view of the text appended so far, which later appends don't change
+     */
+    View view() {
+        return new View(this, chunks, lineBreaks, lineBreakCount);
+    }
+
+    private synchronized boolean retain() {
+        if (closed) {
+            return false;
+        }
+        readers++;
+        return true;
+    }
+
+    private synchronized void release() {
+        if (--readers == 0 && closed) {
+            try {
+                free();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Immutable view of an add buffer, see {@link #view()}.
+     */
+    static final class View implements TextSource {
+        private final AddBuffer buffer;
+        private final CharBuffer[] chunks;
+        private final int[] lineBreaks;
+        private final int lineBreakCount;
+
+        private View(AddBuffer buffer, CharBuffer[] chunks, int[] lineBreaks, int lineBreakCount) {
+            this.buffer = buffer;
+            this.chunks = chunks;
+            this.lineBreaks = lineBreaks;
+            this.lineBreakCount = lineBreakCount;
+        }
+
+        /**
+         * Keeps the storage of the buffer after it is closed, until {@link #release()} is called.
+         *
+         * @return false if the buffer is already closed, the view must not be read then
+         */
+        boolean retain() {
+            return buffer.retain();
+        }
+
+        /**
+         * Ends reading a view that was retained. The storage is released if the buffer was closed in the meantime
+         * and this was the last reader.
+         */
+        void release() {
+            buffer.release();
+        }
+
+        @Override
+        public char charAt(long offset) {
+            return chunks[(int) (offset >>> CHUNK_BITS)].get((int) (offset & (CHUNK_SIZE - 1)));
+        }
+
+        @Override
+        public void getChars(long from, long to, char[] dst, int dstBegin) {
+            while (from < to) {
+                int index = (int) (from & (CHUNK_SIZE - 1));
+                int n = (int) Math.min(to - from, CHUNK_SIZE - index);
+                chunks[(int) (from >>> CHUNK_BITS)].get(index, dst, dstBegin, n);
+                from += n;
+                dstBegin += n;
+            }
+        }
+
+        @Override
+        public long lineBreaks(long from, long to) {
+            return lineBreaksBefore(to) - lineBreaksBefore(from);
+        }
+
+        @Override
+        public long indexOfLineBreak(long from, long n) {
+            long i = lineBreaksBefore(from) + n;
+            return i < lineBreakCount ? lineBreaks[(int) i] : -1;
+        }
+
+        private int lineBreaksBefore(long offset) {
+            int i = Arrays.binarySearch(lineBreaks, 0, lineBreakCount, (int) offset);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+
+    /**
+     * Encodes the characters within a range as UTF-8 and writes them to a channel.
+     *
+     * @param buffer Buffer used for the encoded bytes, so memory use does not depend on the length of the range
+     */
+    void write(long from, long to, WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer[] c = chunks;
+        // high surrogate at the end of the previous chunk, whose low surrogate is in the next one
+        CharBuffer pending = null;
+        while (from < to) {
+            int index = (int) (from & (CHUNK_SIZE - 1));
+            int n = (int) Math.min(to - from, CHUNK_SIZE - index);
+            CharBuffer in = c[(int) (from >>> CHUNK_BITS)].slice(index, n);
+            from += n;
+            if (pending != null) {
+                encode(encoder, CharBuffer.wrap(new char[]{pending.get(), in.get()}), false, out, buffer);
+            }
+            encode(encoder, in, from == to, out, buffer);
+            pending = in.hasRemaining() ? in : null;
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            drain(buffer, out);
+        }
+        drain(buffer, out);
+    }
+
+    private static void encode(CharsetEncoder encoder, CharBuffer in, boolean endOfInput,
+                               WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        CoderResult result;
+        do {
+            result = encoder.encode(in, buffer, endOfInput);
+            drain(buffer, out);
+        } while (result.isOverflow());
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Releases the storage, or leaves that to the last reader of a retained view. Pieces on this buffer can't be read
+     * afterwards, except through views that were retained before.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        chunks = new CharBuffer[0];
+        length = 0;
+        lineBreakCount = 0;
+        if (readers == 0) {
+            free();
+        }
+    }
+
+    private void free() throws IOException {
+        if (channel != null) {
+            // the pages of a mapping are freed with the file, while the mapping itself lasts until it is collected
+            channel.truncate(0);
+            channel.close();
+            Files.deleteIfExists(spillFile);
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package text;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Piece table holding the pieces in parallel primitive arrays instead of objects. Together with the pieces it keeps
+ * the end position of every piece, so finding a position is a binary search, and reading walks contiguous memory.
+ * <p>
+ * The arrays are split into blocks of at most {@link #BLOCK_SIZE} pieces. Blocks are never modified, an edit only
+ * builds the blocks holding the edited range again, so it is O({@link #BLOCK_SIZE} + number of blocks). Versions
+ * kept by snapshots and the undo history share all other blocks. A piece takes {@link #PIECE_BYTES} bytes, less than
+ * half of a tree node with its piece object. Pieces are only turned into {@link Piece} objects when they are handed
+ * out.
+ */
+final class ArrayPieceTable implements PieceTable {
+    static final int BLOCK_SIZE = 1024;
+
+    // source, offset, length, line breaks and end position of a piece
+    private static final int PIECE_BYTES = Integer.BYTES + 4 * Long.BYTES;
+
+    // reference to a block, its end position and its number of line breaks up to its end
+    private static final int BLOCK_BYTES = Integer.BYTES + 2 * Long.BYTES;
+
+    private static final ArrayPieceTable EMPTY = new ArrayPieceTable(new File[0], new Block[0], 0);
+
+    /**
+     * Consecutive pieces of a table.
+     */
+    private static final class Block {
+        // index of the file in the sources of the table, offset and length of every piece
+        final int[] source;
+        final long[] offset;
+        final long[] length;
+
+        // number of line breaks in every piece, -1 if not known when the block was created. Never modified, the
+        // counts computed later are kept in lineEnds.
+        final long[] lineBreaks;
+
+        // position after the last character of every piece, relative to the start of the block
+        final long[] ends;
+
+        // number of line breaks up to the end of every piece, relative to the start of the block, computed on first
+        // use and shared by all versions holding the block. Snapshots on other threads may compute it at the same
+        // time, the array is only published once it is filled.
+        volatile long[] lineEnds;
+
+        Block(int[] source, long[] offset, long[] length, long[] lineBreaks) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+            this.lineBreaks = lineBreaks;
+            this.ends = new long[length.length];
+            long end = 0;
+            for (int i = 0; i < length.length; i++) {
+                end += length[i];
+                ends[i] = end;
+            }
+        }
+
+        int count() {
+            return source.length;
+        }
+
+        long length() {
+            return ends[ends.length - 1];
+        }
+
+        long start(int i) {
+            return i == 0 ? 0 : ends[i - 1];
+        }
+
+        long[] lineEnds(File[] sources, Snapshot text) {
+            long[] e = lineEnds;
+            if (e == null) {
+                e = new long[count()];
+                long sum = 0;
+                for (int i = 0; i < e.length; i++) {
+                    sum += lineBreaks[i] >= 0 ? lineBreaks[i]
+                            : text.source(sources[source[i]]).lineBreaks(offset[i], offset[i] + length[i]);
+                    e[i] = sum;
+                }
+                lineEnds = e;
+            }
+            return e;
+        }
+
+        /**
+         * @return the number of line breaks in every piece, including the ones computed since the block was created
+         */
+        long[] knownLineBreaks() {
+            long[] e = lineEnds;
+            if (e == null) {
+                return lineBreaks;
+            }
+            long[] known = new long[e.length];
+            for (int i = 0; i < e.length; i++) {
+                known[i] = e[i] - (i == 0 ? 0 : e[i - 1]);
+            }
+            return known;
+        }
+    }
+
+    /**
+     * Collects pieces in parallel arrays, merging neighbouring pieces that continue each other, and cuts them into
+     * blocks.
+     */
+    private static final class Builder {
+        // grows when a piece references a new file, the indexes of the files already in it stay valid
+        private File[] sources;
+
+        private int[] source = new int[16];
+        private long[] offset = new long[16];
+        private long[] length = new long[16];
+        private long[] lineBreaks = new long[16];
+        private int count;
+
+        Builder(File[] sources) {
+            this.sources = sources;
+        }
+
+        void add(Piece p) {
+            if (p.length == 0) {
+                return;
+            }
+            int s = 0;
+            while (s < sources.length && sources[s] != p.file) {
+                s++;
+            }
+            if (s == sources.length) {
+                sources = Arrays.copyOf(sources, s + 1);
+                sources[s] = p.file;
+            }
+            add(s, p.offset, p.length, p.lineBreaks);
+        }
+
+        /**
+         * Adds the pieces of a block within a range, cut at the range boundaries.
+         *
+         * @param from Start of the range relative to the block (inclusive)
+         * @param to   End of the range relative to the block (exclusive)
+         */
+        void add(Block b, long from, long to) {
+            to = Math.min(to, b.length());
+            if (from >= to) {
+                return;
+            }
+            long[] known = b.knownLineBreaks();
+            for (int i = firstAbove(b.ends, from); i < b.count() && b.start(i) < to; i++) {
+                long start = b.start(i);
+                long cutFrom = Math.max(from, start) - start;
+                long cutTo = Math.min(to, b.ends[i]) - start;
+                long n = cutTo - cutFrom;
+                add(b.source[i], b.offset[i] + cutFrom, n, n == b.length[i] ? known[i] : -1);
+            }
+        }
+
+        private void add(int s, long offset, long length, long lineBreaks) {
+            int last = count - 1;
+            if (last >= 0 && source[last] == s && this.offset[last] + this.length[last] == offset) {
+                this.length[last] += length;
+                this.lineBreaks[last] = this.lineBreaks[last] >= 0 && lineBreaks >= 0
+                        ? this.lineBreaks[last] + lineBreaks : -1;
+                return;
+            }
+            if (count == source.length) {
+                source = Arrays.copyOf(source, count * 2);
+                this.offset = Arrays.copyOf(this.offset, count * 2);
+                this.length = Arrays.copyOf(this.length, count * 2);
+                this.lineBreaks = Arrays.copyOf(this.lineBreaks, count * 2);
+            }
+            source[count] = s;
+            this.offset[count] = offset;
+            this.length[count] = length;
+            this.lineBreaks[count] = lineBreaks;
+            count++;
+        }
+
+        /**
+         * @return the collected pieces in blocks of equal size
+         */
+        Block[] blocks() {
+            int n = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            Block[] blocks = new Block[n];
+            for (int b = 0; b < n; b++) {
+                int from = (int) ((long) count * b / n);
+                int to = (int) ((long) count * (b + 1) / n);
+                blocks[b] = new Block(Arrays.copyOfRange(source, from, to), Arrays.copyOfRange(offset, from, to),
+                        Arrays.copyOfRange(length, from, to), Arrays.copyOfRange(lineBreaks, from, to));
+            }
+            return blocks;
+        }
+
+        long bytes() {
+            return (long) count * PIECE_BYTES;
+        }
+    }
+
+    // files referenced by the pieces, usually only the document and the add buffer
+    private final File[] sources;
+
+    private final Block[] blocks;
+
+    // position after the last character of every block
+    private final long[] blockEnds;
+
+    private final int count;
+
+    // bytes of the blocks built for this version and of its block arrays
+    private final long editBytes;
+
+    // number of line breaks up to the end of every block, computed on first use
+    private volatile long[] blockLineEnds;
+
+    private ArrayPieceTable(File[] sources, Block[] blocks, long blockBytes) {
+        this.sources = sources;
+        this.blocks = blocks;
+        this.blockEnds = new long[blocks.length];
+        long end = 0;
+        int count = 0;
+        for (int b = 0; b < blocks.length; b++) {
+            end += blocks[b].length();
+            blockEnds[b] = end;
+            count += blocks[b].count();
+        }
+        this.count = count;
+        this.editBytes = blockBytes + (long) blocks.length * BLOCK_BYTES;
+    }
+
+    static ArrayPieceTable of(Piece piece) {
+        return EMPTY.build(List.of(piece));
+    }
+
+    /**
+     * @return the index of the first element greater than a value, or the length of the array if there is none
+     */
+    private static int firstAbove(long[] a, long value) {
+        int low = 0;
+        int high = a.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] > value) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private long blockStart(int b) {
+        return b == 0 ? 0 : blockEnds[b - 1];
+    }
+
+    /**
+     * @return the index of the block containing the character at given position, or the number of blocks if the
+     * position is at or behind the end
+     */
+    private int block(long position) {
+        return firstAbove(blockEnds, position);
+    }
+
+    private Piece piece(Block b, int i) {
+        Piece p = new Piece(sources[b.source[i]], b.offset[i], b.length[i]);
+        p.lineBreaks = b.lineBreaks[i];
+        return p;
+    }
+
+    /**
+     * Replaces the characters within a range by a piece, or removes them if the piece is null. The blocks holding
+     * the range and the pieces next to it, which may be merged with the new piece, are built again.
+     */
+    private ArrayPieceTable replace(long from, long to, Piece piece) {
+        if (blocks.length == 0) {
+            return build(piece == null ? List.of() : List.of(piece));
+        }
+        int i = Math.min(block(Math.max(from - 1, 0)), blocks.length - 1);
+        int j = Math.min(block(to), blocks.length - 1);
+        Builder builder = new Builder(sources);
+        builder.add(blocks[i], 0, from - blockStart(i));
+        if (piece != null) {
+            builder.add(piece);
+        }
+        builder.add(blocks[j], to - blockStart(j), Long.MAX_VALUE);
+
+        Block[] middle = builder.blocks();
+        Block[] newBlocks = new Block[i + middle.length + blocks.length - j - 1];
+        System.arraycopy(blocks, 0, newBlocks, 0, i);
+        System.arraycopy(middle, 0, newBlocks, i, middle.length);
+        System.arraycopy(blocks, j + 1, newBlocks, i + middle.length, blocks.length - j - 1);
+        return new ArrayPieceTable(builder.sources, newBlocks, builder.bytes());
+    }
+
+    @Override
+    public long length() {
+        return blockEnds.length == 0 ? 0 : blockEnds[blockEnds.length - 1];
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    /**
+     * An edit copies the blocks it touches and the arrays referencing the blocks.
+     */
+    @Override
+    public long editBytes() {
+        return editBytes;
+    }
+
+    @Override
+    public PieceTree.Location<Piece> locate(long position) {
+        if (position < 0) {
+            return null;
+        }
+        int b = block(position);
+        if (b == blocks.length) {
+            return null;
+        }
+        Block block = blocks[b];
+        long local = position - blockStart(b);
+        int i = firstAbove(block.ends, local);
+        return new PieceTree.Location<>(piece(block, i), local - block.start(i));
+    }
+
+    @Override
+    public PieceTable insert(long position, Piece piece) {
+        if (piece.length == 0) {
+            return this;
+        }
+        return replace(position, position, piece);
+    }
+
+    @Override
+    public PieceTable delete(long from, long to) {
+        if (from >= to || from >= length()) {
+            return this;
+        }
+        return replace(from, Math.min(to, length()), null);
+    }
+
+    @Override
+    public PieceTable compact() {
+        List<Piece> pieces = new ArrayList<>();
+        forEach(pieces::add);
+        return build(pieces);
+    }
+
+    @Override
+    public ArrayPieceTable build(List<Piece> pieces) {
+        Builder builder = new Builder(new File[0]);
+        pieces.forEach(builder::add);
+        return new ArrayPieceTable(builder.sources, builder.blocks(), builder.bytes());
+    }
+
+    @Override
+    public Iterator<Piece> range(long from, long to) {
+        return new Iterator<>() {
+            private int b = block(from);
+            private int i = b == blocks.length ? 0 : firstAbove(blocks[b].ends, from - blockStart(b));
+
+            @Override
+            public boolean hasNext() {
+                return from < to && b < blocks.length && blockStart(b) + blocks[b].start(i) < to;
+            }
+
+            @Override
+            public Piece next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long start = blockStart(b) + blocks[b].start(i);
+                Piece p = piece(blocks[b], i);
+                if (++i == blocks[b].count()) {
+                    b++;
+                    i = 0;
+                }
+                // only the pieces at the ends of the range are cut
+                if (from <= start && start + p.length <= to) {
+                    return p;
+                }
+                return p.slice(Math.max(from, start) - start, Math.min(to, start + p.length) - start);
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Piece> iterator() {
+        return range(0, length());
+    }
+
+    private long[] blockLineEnds(Snapshot text) {
+        long[] e = blockLineEnds;
+        if (e == null) {
+            e = new long[blocks.length];
+            long sum = 0;
+            for (int b = 0; b < e.length; b++) {
+                long[] lineEnds = blocks[b].lineEnds(sources, text);
+                sum += lineEnds[lineEnds.length - 1];
+                e[b] = sum;
+            }
+            blockLineEnds = e;
+        }
+        return e;
+    }
+
+    @Override
+    public long lineOfPosition(long position, Snapshot text) {
+        int b = block(position);
+        if (b == blocks.length) {
+            return lineBreaks(text);
+        }
+        long[] be = blockLineEnds(text);
+        Block block = blocks[b];
+        long[] e = block.lineEnds(sources, text);
+        long local = position - blockStart(b);
+        int i = firstAbove(block.ends, local);
+        long offset = block.offset[i];
+        return (b == 0 ? 0 : be[b - 1]) + (i == 0 ? 0 : e[i - 1])
+                + text.source(sources[block.source[i]]).lineBreaks(offset, offset + local - block.start(i));
+    }
+
+    @Override
+    public long positionOfLine(long line, Snapshot text) {
+        if (line == 0) {
+            return 0;
+        }
+        // the first block, and in it the first piece, holding the line break before the line
+        long[] be = blockLineEnds(text);
+        int b = firstAbove(be, line - 1);
+        if (b == blocks.length) {
+            return -1;
+        }
+        Block block = blocks[b];
+        long[] e = block.lineEnds(sources, text);
+        long before = (b == 0 ? 0 : be[b - 1]);
+        int i = firstAbove(e, line - before - 1);
+        before += i == 0 ? 0 : e[i - 1];
+        long offset = block.offset[i];
+        long lineBreak = text.source(sources[block.source[i]]).indexOfLineBreak(offset, line - before - 1);
+        return blockStart(b) + block.start(i) + lineBreak - offset + 1;
+    }
+
+    @Override
+    public long lineBreaks(Snapshot text) {
+        return blocks.length == 0 ? 0 : blockLineEnds(text)[blocks.length - 1];
+    }
+
+    @Override
+    public Walk walk(long position) {
+        if (blocks.length == 0) {
+            return null;
+        }
+        return new Walk() {
+            private int b;
+            private int i;
+            private Piece piece;
+
+            {
+                b = block(position);
+                if (b == blocks.length) {
+                    b--;
+                    i = blocks[b].count() - 1;
+                } else {
+                    i = firstAbove(blocks[b].ends, position - blockStart(b));
+                }
+                piece = ArrayPieceTable.this.piece(blocks[b], i);
+            }
+
+            @Override
+            public Piece piece() {
+                return piece;
+            }
+
+            @Override
+            public long start() {
+                return blockStart(b) + blocks[b].start(i);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return b < blocks.length - 1 || i < blocks[b].count() - 1;
+            }
+
+            @Override
+            public boolean hasPrevious() {
+                return b > 0 || i > 0;
+            }
+
+            @Override
+            public void next() {
+                if (++i == blocks[b].count()) {
+                    b++;
+                    i = 0;
+                }
+                piece = ArrayPieceTable.this.piece(blocks[b], i);
+            }
+
+            @Override
+            public void previous() {
+                if (i-- == 0) {
+                    b--;
+                    i = blocks[b].count() - 1;
+                }
+                piece = ArrayPieceTable.this.piece(blocks[b], i);
+            }
+        };
+    }
+}
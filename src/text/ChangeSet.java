@@ -0,0 +1,78 @@
+package text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the edits of a batch as a minimal list of changes. Changes are sorted, don't overlap and don't touch;
+ * an edit that overlaps or touches earlier changes is merged with them.
+ */
+final class ChangeSet {
+    // changes in positions of the current text
+    private final List<UpdateEvent.Change> changes = new ArrayList<>();
+
+    /**
+     * Adds an edit that replaced the characters within a range of the current text.
+     *
+     * @param from     Start of the edit in the text before it
+     * @param removed  Number of characters the edit removed
+     * @param inserted Number of characters the edit inserted
+     */
+    void add(long from, long removed, long inserted) {
+        if (removed == 0 && inserted == 0) {
+            return;
+        }
+
+        // changes i to j - 1 overlap or touch the edit, found by a binary search so edits from left to right are
+        // added in O(log n)
+        int i = 0;
+        int high = changes.size();
+        while (i < high) {
+            int mid = (i + high) >>> 1;
+            if (end(changes.get(mid)) < from) {
+                i = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int j = i;
+        long start = from;
+        long end = from + removed;
+        long mergedInserted = 0;
+        long mergedRemoved = 0;
+        while (j < changes.size() && changes.get(j).from() <= from + removed) {
+            UpdateEvent.Change c = changes.get(j);
+            start = Math.min(start, c.from());
+            end = Math.max(end, end(c));
+            mergedInserted += c.inserted();
+            mergedRemoved += c.removed();
+            j++;
+        }
+
+        // characters within [start, end) that are not from earlier changes are from the original text
+        UpdateEvent.Change merged = new UpdateEvent.Change(start,
+                end - start - mergedInserted + mergedRemoved, end - start - removed + inserted);
+        changes.subList(i, j).clear();
+        changes.add(i, merged);
+
+        long shift = inserted - removed;
+        if (shift != 0) {
+            for (int k = i + 1; k < changes.size(); k++) {
+                UpdateEvent.Change c = changes.get(k);
+                changes.set(k, new UpdateEvent.Change(c.from() + shift, c.removed(), c.inserted()));
+            }
+        }
+    }
+
+    private static long end(UpdateEvent.Change c) {
+        return c.from() + c.inserted();
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    List<UpdateEvent.Change> changes() {
+        return List.copyOf(changes);
+    }
+}
@@ -0,0 +1,140 @@
+package text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Search for a string in several documents at once, e.g. in all open tabs.
+ * <p>
+ * Every document is searched by its own virtual thread, over a snapshot taken when the search starts, so the
+ * documents can be edited meanwhile. Matches are not collected until the end, but handed to a consumer in batches
+ * of up to {@link #BATCH_SIZE} matches, or earlier if the last batch was handed over {@link #BATCH_DELAY} ms ago.
+ * The consumer is called from the searching threads and has to pass the matches on to the UI thread itself.
+ *
+ * @param <D> Type of the objects identifying the documents
+ */
+public final class DocumentSearch<D> {
+    static final int BATCH_SIZE = 256;
+    static final long BATCH_DELAY = 100;
+    // matches reported per document, further ones are only counted
+    static final int MAX_HITS = 10_000;
+    // characters shown before and behind a match at most
+    private static final int CONTEXT = 40;
+
+    /**
+     * A match in one of the documents.
+     *
+     * @param position Position of the match in the snapshot that was searched
+     * @param line     Number of the line containing the match, starting at 0
+     * @param context  The line containing the match, cut to some characters around it
+     */
+    public record Hit<D>(D document, long position, long line, String context) {
+    }
+
+    private final TextSearch search;
+    private volatile boolean cancelled;
+    // number of matches in all documents, including the ones that were not reported
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * @param query The string to search for, not empty
+     */
+    public DocumentSearch(String query) {
+        this.search = new TextSearch(query);
+    }
+
+    /**
+     * Starts searching the documents, one virtual thread per document.
+     *
+     * @param found Called with every batch of matches, in text order per document
+     * @param done  Called once all documents were searched, unless the search was cancelled
+     */
+    public void start(Map<D, Snapshot> documents, Consumer<List<Hit<D>>> found, Runnable done) {
+        AtomicInteger running = new AtomicInteger(documents.size());
+        if (documents.isEmpty()) {
+            done.run();
+        }
+        documents.forEach((document, text) -> {
+            // a document that is already closed is skipped
+            boolean open = text.retain();
+            Thread.ofVirtual().name("document-search").start(() -> {
+                try {
+                    if (open) {
+                        search(document, text, found);
+                    }
+                } finally {
+                    if (open) {
+                        text.release();
+                    }
+                    // a failed document must not keep the caller waiting for the others
+                    if (running.decrementAndGet() == 0 && !cancelled) {
+                        done.run();
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * Searches a single document on the current thread.
+     */
+    private void search(D document, Snapshot text, Consumer<List<Hit<D>>> found) {
+        List<Hit<D>> batch = new ArrayList<>();
+        long lastBatch = System.currentTimeMillis();
+        int hits = 0;
+        long length = text.length();
+        for (long start = 0; start < length && !cancelled; start += TextSearch.CHUNK_SIZE) {
+            List<Long> matches = new ArrayList<>();
+            search.forEachMatch(text, start, Math.min(length, start + TextSearch.CHUNK_SIZE), matches::add);
+            count.addAndGet(matches.size());
+            for (int i = 0; i < matches.size() && hits < MAX_HITS; i++, hits++) {
+                batch.add(hit(document, text, matches.get(i)));
+            }
+            long now = System.currentTimeMillis();
+            if (batch.size() >= BATCH_SIZE || !batch.isEmpty() && now - lastBatch >= BATCH_DELAY) {
+                report(batch, found);
+                batch = new ArrayList<>();
+                lastBatch = now;
+            }
+        }
+        if (!batch.isEmpty()) {
+            report(batch, found);
+        }
+    }
+
+    private void report(List<Hit<D>> batch, Consumer<List<Hit<D>>> found) {
+        if (!cancelled) {
+            found.accept(batch);
+        }
+    }
+
+    private Hit<D> hit(D document, Snapshot text, long position) {
+        long from = Math.max(0, position - CONTEXT);
+        long to = Math.min(text.length(), position + search.length() + CONTEXT);
+        String context = text.readRange(from, to);
+        // cut the context at the line breaks around the match
+        int start = context.lastIndexOf('\n', (int) (position - from) - 1) + 1;
+        int end = context.indexOf('\n', (int) (position - from) + search.length());
+        context = context.substring(start, end < 0 ? context.length() : end).strip();
+        return new Hit<>(document, position, text.lineOfPosition(position), context);
+    }
+
+    /**
+     * @return the number of matches found so far, including the ones not reported because of {@link #MAX_HITS}
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * Stops the search. The threads stop after the chunk of text they are searching, and no more matches are
+     * reported.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+}
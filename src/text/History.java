@@ -0,0 +1,97 @@
+package text;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Undo and redo history of a piece list.
+ * <p>
+ * The pieces and the style runs are persistent, so an entry only keeps the roots of an earlier version. Undoing
+ * a deletion reattaches the old pieces instead of copying the deleted text, and undo and redo are O(1). Versions
+ * share all untouched nodes, so an entry costs about one path from the root to a leaf per tree, or the blocks of
+ * the piece arrays an edit touched with {@link PieceList.Backend#ARRAYS}. The history keeps at most
+ * {@link #MAX_BYTES} of those estimated costs and drops the oldest entries beyond that.
+ */
+final class History {
+    private static final long MAX_BYTES = 16L << 20;
+
+    // estimated size of a tree node, including its segment
+    private static final int NODE_BYTES = 64;
+
+    /**
+     * A version of the text.
+     *
+     * @param position Position of the edit that replaced this version, used to place the cursor
+     */
+    record State(PieceTable pieces, StyleRuns<Integer> styles, long position) {
+        private State at(long position) {
+            return new State(pieces, styles, position);
+        }
+
+        private long bytes() {
+            return pieces.editBytes() + (long) styles.height() * NODE_BYTES;
+        }
+    }
+
+    private final Deque<State> undo = new ArrayDeque<>();
+    private final Deque<State> redo = new ArrayDeque<>();
+    private long undoBytes;
+
+    /**
+     * Records the version before an edit. The redo history is discarded.
+     */
+    void record(State before) {
+        redo.clear();
+        push(before);
+    }
+
+    /**
+     * @param current The current version, which can be restored by {@link #redo(State)}. Its position is ignored.
+     * @return the version before the last edit, or null if there is none
+     */
+    State undo(State current) {
+        State s = undo.poll();
+        if (s != null) {
+            undoBytes -= s.bytes();
+            redo.push(current.at(s.position()));
+        }
+        return s;
+    }
+
+    /**
+     * @param current The current version, which can be restored by {@link #undo(State)}. Its position is ignored.
+     * @return the version before the last undo, or null if there is none
+     */
+    State redo(State current) {
+        State s = redo.poll();
+        if (s != null) {
+            push(current.at(s.position()));
+        }
+        return s;
+    }
+
+    /**
+     * Removes the last recorded version without making it redoable.
+     *
+     * @return the removed version
+     */
+    State removeLast() {
+        State s = undo.pop();
+        undoBytes -= s.bytes();
+        return s;
+    }
+
+    void clear() {
+        undo.clear();
+        redo.clear();
+        undoBytes = 0;
+    }
+
+    private void push(State s) {
+        undo.push(s);
+        undoBytes += s.bytes();
+        while (undoBytes > MAX_BYTES && undo.size() > 1) {
+            undoBytes -= undo.removeLast().bytes();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package text;
+
+import javafx.scene.paint.Paint;
+import javafx.scene.text.Font;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of the edits of a document since it was last saved, including undo and redo, stored next to the
+ * document. If the editor is closed or crashes before saving, the edits are replayed when the document is opened
+ * again.
+ * <p>
+ * Edits are encoded into memory on the calling thread and written by a background thread. Writes are grouped: the
+ * journal is written and forced to disk once a number of edits were collected or a short time after the first
+ * pending edit, never once per keystroke.
+ * <p>
+ * The journal remembers the size and modification time of the document it was started on. If the document was
+ * changed in the meantime, the journal is ignored.
+ */
+public final class Journal implements UpdateEventListener, Closeable {
+    private static final int MAGIC = 0x53534A32; // "SSJ2"
+    private static final int HEADER_SIZE = Integer.BYTES + 2 * Long.BYTES;
+
+    // number of edits that are written at once
+    private static final int GROUP_SIZE = 256;
+    // time after which pending edits are written
+    private static final long GROUP_DELAY_MILLIS = 500;
+
+    private static final byte INSERT = 'I';
+    private static final byte DELETE = 'D';
+    private static final byte STYLE = 'S';
+    private static final byte UNDO = 'U';
+    private static final byte REDO = 'R';
+    private static final byte BEGIN = 'B';
+    private static final byte COMMIT = 'C';
+
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "journal-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final List<Journal> open = new ArrayList<>();
+
+    private final File document;
+    private final Path path;
+    private final PieceList text;
+
+    // size and modification time of the document the edits apply to
+    private long documentSize;
+    private long documentModified;
+
+    // encoded edits that were not yet written, guarded by this
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private int pendingCount;
+    private boolean flushScheduled;
+
+    // only used by the writer thread
+    private FileChannel channel;
+    private long validLength;
+
+    private Journal(File document, PieceList text) throws IOException {
+        this.text = text;
+        this.document = document.getAbsoluteFile();
+        this.path = new File(this.document.getParentFile(), "." + document.getName() + ".journal").toPath();
+        this.documentSize = Files.size(this.document.toPath());
+        this.documentModified = Files.getLastModifiedTime(this.document.toPath()).toMillis();
+    }
+
+    /**
+     * Opens the journal of a document and replays the edits recorded in it. Afterwards new edits of the piece list
+     * are recorded.
+     *
+     * @param text The piece list holding the document as it was saved
+     */
+    public static Journal open(File document, PieceList text) throws IOException {
+        Journal journal = new Journal(document, text);
+        journal.validLength = journal.replay();
+        if (journal.validLength == 0) {
+            Files.deleteIfExists(journal.path);
+        }
+        text.addUpdateEventListener(journal);
+        synchronized (open) {
+            open.add(journal);
+        }
+        return journal;
+    }
+
+    /**
+     * Writes the pending edits of all open journals and closes them.
+     */
+    public static void closeAll() throws IOException {
+        List<Journal> journals;
+        synchronized (open) {
+            journals = new ArrayList<>(open);
+        }
+        for (Journal j : journals) {
+            j.close();
+        }
+    }
+
+    /**
+     * Applies the edits of a journal that belongs to the document.
+     *
+     * @return the length of the journal up to the last complete edit, or 0 if there is no journal to continue
+     */
+    private long replay() throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer in;
+        try (FileChannel c = FileChannel.open(path, StandardOpenOption.READ)) {
+            in = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+        }
+        if (in.remaining() < HEADER_SIZE
+                || in.getInt() != MAGIC || in.getLong() != documentSize || in.getLong() != documentModified) {
+            return 0;
+        }
+        long length = in.position();
+        try {
+            while (in.hasRemaining() && readEdit(in, text)) {
+                if (!text.inBatch()) {
+                    length = in.position();
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // the last edit was written partially
+        }
+        if (text.inBatch()) {
+            // a batch is only applied completely
+            text.abortBatch();
+        }
+        return length;
+    }
+
+    /**
+     * Reads an edit and applies it to the piece list.
+     *
+     * @return false if the journal is corrupt at the current position
+     */
+    private static boolean readEdit(ByteBuffer in, PieceList text) {
+        switch (in.get()) {
+            case INSERT -> {
+                long position = in.getLong();
+                text.insert(position, readString(in));
+            }
+            case DELETE -> {
+                long from = in.getLong();
+                text.delete(from, in.getLong());
+            }
+            case STYLE -> {
+                long from = in.getLong();
+                long to = in.getLong();
+                Font font = in.get() != 0 ? Font.font(readString(in), in.getDouble()) : null;
+                Paint color = in.get() != 0 ? Paint.valueOf(readString(in)) : null;
+                text.setStyle(from, to, font, color);
+            }
+            case UNDO -> text.undo();
+            case REDO -> text.redo();
+            case BEGIN -> text.beginBatch();
+            case COMMIT -> text.commit();
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readString(ByteBuffer in) {
+        char[] chars = new char[in.getInt()];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + 2 * chars.length);
+        return new String(chars);
+    }
+
+    private void writeString(String s) throws IOException {
+        pendingOut.writeInt(s.length());
+        pendingOut.writeChars(s);
+    }
+
+    @Override
+    public void update(UpdateEvent e) {
+        synchronized (this) {
+            try {
+                writeEdit(e);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            if (++pendingCount >= GROUP_SIZE) {
+                writer.execute(this::flush);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                writer.schedule(this::flush, GROUP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void writeEdit(UpdateEvent e) throws IOException {
+        switch (e) {
+            case UpdateEvent.Insert(long position, int length) -> writeInsert(position, length);
+            case UpdateEvent.Delete(long from, long to) -> {
+                pendingOut.writeByte(DELETE);
+                pendingOut.writeLong(from);
+                pendingOut.writeLong(to);
+            }
+            case UpdateEvent.Style(long from, long to, Font font, Paint color) -> writeStyle(from, to, font, color);
+            case UpdateEvent.Undo u -> pendingOut.writeByte(UNDO);
+            case UpdateEvent.Redo r -> pendingOut.writeByte(REDO);
+            case UpdateEvent.Load l -> {
+                // loading the rest of a large document is no edit, it happens again when the document is reopened
+            }
+            case UpdateEvent.Batch(List<UpdateEvent.Change> changes) -> {
+                // changes are given in positions after the batch, so they are replayed from left to right
+                pendingOut.writeByte(BEGIN);
+                for (UpdateEvent.Change c : changes) {
+                    if (c.removed() > 0) {
+                        pendingOut.writeByte(DELETE);
+                        pendingOut.writeLong(c.from());
+                        pendingOut.writeLong(c.from() + c.removed());
+                    }
+                    if (c.inserted() > 0) {
+                        writeInsert(c.from(), Math.toIntExact(c.inserted()));
+                        for (StyleRun r : text.getStyleRuns(c.from(), c.from() + c.inserted())) {
+                            writeStyle(r.from(), r.to(), r.font(), r.color());
+                        }
+                    }
+                }
+                pendingOut.writeByte(COMMIT);
+            }
+        }
+    }
+
+    private void writeInsert(long position, int length) throws IOException {
+        pendingOut.writeByte(INSERT);
+        pendingOut.writeLong(position);
+        writeString(text.readRange(position, position + length));
+    }
+
+    private void writeStyle(long from, long to, Font font, Paint color) throws IOException {
+        pendingOut.writeByte(STYLE);
+        pendingOut.writeLong(from);
+        pendingOut.writeLong(to);
+        pendingOut.writeBoolean(font != null);
+        if (font != null) {
+            writeString(font.getName());
+            pendingOut.writeDouble(font.getSize());
+        }
+        pendingOut.writeBoolean(color != null);
+        if (color != null) {
+            writeString(color.toString());
+        }
+    }
+
+    /**
+     * Writes the pending edits and forces them to disk. Runs on the writer thread.
+     */
+    private void flush() {
+        byte[] edits;
+        synchronized (this) {
+            edits = pending.toByteArray();
+            pending.reset();
+            pendingCount = 0;
+            flushScheduled = false;
+        }
+        if (edits.length == 0) {
+            return;
+        }
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                if (validLength == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putLong(documentSize).putLong(documentModified).flip();
+                    writeFully(header);
+                } else {
+                    // drop an edit that was written partially before
+                    channel.truncate(validLength);
+                    channel.position(validLength);
+                }
+            }
+            writeFully(ByteBuffer.wrap(edits));
+            channel.force(false);
+            validLength = channel.position();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    /**
+     * Discards all edits, after the document was saved. Later edits apply to the saved document.
+     */
+    public void reset() throws IOException {
+        synchronized (this) {
+            pending.reset();
+            pendingCount = 0;
+        }
+        await(() -> {
+            closeChannel();
+            validLength = 0;
+            Files.deleteIfExists(path);
+            documentSize = Files.size(document.toPath());
+            documentModified = Files.getLastModifiedTime(document.toPath()).toMillis();
+            return null;
+        });
+    }
+
+    /**
+     * Writes the pending edits and closes the journal. The journal file is kept, so the edits are replayed when the
+     * document is opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (open) {
+            open.remove(this);
+        }
+        await(() -> {
+            flush();
+            closeChannel();
+            return null;
+        });
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Runs a task on the writer thread and waits for it, so it is ordered with the writes.
+     */
+    private static void await(Callable<Void> task) throws IOException {
+        try {
+            writer.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
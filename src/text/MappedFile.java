@@ -0,0 +1,530 @@
+package text;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Read-only memory mapping of a whole UTF-8 encoded file.
+ * <p>
+ * A single {@link MappedByteBuffer} can only address 2 GB, so the file is mapped in segments of 1 GB.
+ * <p>
+ * Offsets used by {@link TextSource} are character (UTF-16) offsets. They are translated to byte offsets with an
+ * index holding the number of characters before every block of 4 KB, so a lookup is a binary search followed by a
+ * scan of at most one block. Blocks that only contain ASCII characters need no scan, and files that only contain
+ * ASCII characters need no lookup at all once they are indexed.
+ * <p>
+ * The number of characters and the number of line breaks before every block are counted by a background thread after
+ * the file was mapped, the characters first. Their blocks are counted eight bytes at a time, the characters also in
+ * parallel. Queries for blocks that were not reached yet index them on the calling thread, so the start of a file
+ * can be read right away, and only {@link #length()} waits for the whole character index.
+ * <p>
+ * On request, a {@link TrigramIndex} of the file is opened or built in the background as well. Searches use it once
+ * it is ready.
+ */
+final class MappedFile implements TextSource {
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private static final int BLOCK_BITS = 12;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    // number of bytes of an ASCII file copied at once when reading characters
+    private static final int ASCII_COPY_SIZE = 8192;
+
+    // number of blocks the background thread indexes at once
+    private static final int CHAR_INDEX_BATCH = 1 << 14;
+    private static final int LINE_INDEX_BATCH = 256;
+
+    // masks for counting bytes of a long at once
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long LINE_BREAKS = 0x0A0A0A0A0A0A0A0AL;
+
+    private static final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "file-indexer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    // number of characters starting before each block, valid for the first charsIndexed + 1 entries
+    private final long[] blockChars;
+    // one bit for each block that only contains ASCII characters, valid for the first charsIndexed blocks
+    private final long[] asciiWords;
+    // a multiple of 64, or the number of blocks, so the words of the ASCII blocks are written at once
+    private volatile int charsIndexed;
+    // true once all blocks are indexed and only contain ASCII characters
+    private volatile boolean ascii;
+    private final CompletableFuture<Void> charsComplete = new CompletableFuture<>();
+
+    // number of line breaks before each block, valid for the first linesIndexed + 1 entries
+    private final long[] blockLines;
+    private volatile int linesIndexed;
+
+    // trigram index of the file, or null if it was not requested
+    private volatile CompletableFuture<TrigramIndex> trigrams;
+
+    MappedFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.size = channel.size();
+            this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        }
+
+        int blocks = (int) ((size + BLOCK_SIZE - 1) >>> BLOCK_BITS);
+        this.blockChars = new long[blocks + 1];
+        this.asciiWords = new long[(blocks + 63) >>> 6];
+        this.blockLines = new long[blocks + 1];
+        if (blocks == 0) {
+            ascii = true;
+            charsComplete.complete(null);
+        }
+        indexer.execute(() -> {
+            while (charsIndexed < blocks) {
+                indexChars(Math.min(blocks, charsIndexed + CHAR_INDEX_BATCH));
+            }
+            while (linesIndexed < blocks) {
+                indexLines(Math.min(blocks, linesIndexed + LINE_INDEX_BATCH));
+            }
+        });
+    }
+
+    /**
+     * Opens or builds the trigram index of the file in the background, unless that was already requested.
+     *
+     * @param file The mapped file, for finding its index file
+     * @return completes with the index once it is ready
+     */
+    synchronized CompletableFuture<TrigramIndex> indexTrigrams(File file) {
+        if (trigrams == null) {
+            trigrams = TrigramIndex.open(file, this);
+        }
+        return trigrams;
+    }
+
+    /**
+     * @return the trigram index of the file, or null if it is not ready or could not be built
+     */
+    TrigramIndex trigrams() {
+        CompletableFuture<TrigramIndex> t = trigrams;
+        return t != null && t.state() == Future.State.SUCCESS ? t.resultNow() : null;
+    }
+
+    /**
+     * @return completes once the characters of the whole file are counted, see {@link #length()}
+     */
+    CompletableFuture<Void> charsIndexed() {
+        return charsComplete;
+    }
+
+    private int blocks() {
+        return blockLines.length - 1;
+    }
+
+    /**
+     * Counts the characters of all blocks up to given block, rounded up to the next 64 blocks. The blocks are
+     * counted in parallel, in tasks of 64 blocks that each write one word of the ASCII blocks.
+     */
+    private synchronized void indexChars(int block) {
+        int from = charsIndexed;
+        if (from >= block) {
+            return;
+        }
+        int to = Math.min(blocks(), (block + 63) & ~63);
+        IntStream.range(from >>> 6, (to + 63) >>> 6).parallel().forEach(w -> {
+            long word = 0;
+            for (int b = w << 6; b < Math.min(to, (w + 1) << 6); b++) {
+                long start = (long) b << BLOCK_BITS;
+                long scan = scanBlock(start, Math.min(size, start + BLOCK_SIZE));
+                blockChars[b + 1] = scan >>> 1;
+                word |= (scan & 1) << (b & 63);
+            }
+            asciiWords[w] = word;
+        });
+        for (int b = from; b < to; b++) {
+            blockChars[b + 1] += blockChars[b];
+        }
+        if (to == blocks()) {
+            int asciiBlocks = 0;
+            for (long w : asciiWords) {
+                asciiBlocks += Long.bitCount(w);
+            }
+            ascii = asciiBlocks == to;
+        }
+        charsIndexed = to;
+        if (to == blocks()) {
+            charsComplete.complete(null);
+        }
+    }
+
+    /**
+     * @return true if a block is indexed and only contains ASCII characters
+     */
+    private boolean isAscii(int block) {
+        return block < charsIndexed && (asciiWords[block >>> 6] & 1L << (block & 63)) != 0;
+    }
+
+    /**
+     * Counts the line breaks of all blocks up to given block.
+     */
+    private synchronized void indexLines(int block) {
+        for (int b = linesIndexed; b < block; b++) {
+            long start = (long) b << BLOCK_BITS;
+            blockLines[b + 1] = blockLines[b] + countLineBreaks(start, Math.min(size, start + BLOCK_SIZE));
+            linesIndexed = b + 1;
+        }
+    }
+
+    private long countLineBreaks(long fromByte, long toByte) {
+        long count = 0;
+        while (fromByte < toByte) {
+            MappedByteBuffer segment = segments[(int) (fromByte >>> SEGMENT_BITS)];
+            int i = (int) (fromByte & (SEGMENT_SIZE - 1));
+            int end = (int) Math.min(segment.capacity(), i + (toByte - fromByte));
+            fromByte += end - i;
+            for (; i + Long.BYTES <= end; i += Long.BYTES) {
+                count += Long.bitCount(zeroBytes(segment.getLong(i) ^ LINE_BREAKS));
+            }
+            for (; i < end; i++) {
+                if (segment.get(i) == '\n') {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return a long with the highest bit of every byte set that is 0 in x
+     */
+    private static long zeroBytes(long x) {
+        return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+    }
+
+    /**
+     * Counts the characters starting within a range of bytes inside a single segment.
+     *
+     * @return the number of characters shifted left by one, the lowest bit is set if all bytes are ASCII
+     */
+    private long scanBlock(long fromByte, long toByte) {
+        MappedByteBuffer segment = segments[(int) (fromByte >>> SEGMENT_BITS)];
+        int i = (int) (fromByte & (SEGMENT_SIZE - 1));
+        int end = i + (int) (toByte - fromByte);
+        long chars = toByte - fromByte;
+        long highBits = 0;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            long x = segment.getLong(i);
+            highBits |= x;
+            // continuation bytes (10xxxxxx) start no character, 4 byte sequences (11110xxx) start two
+            chars -= Long.bitCount(x & ~(x << 1) & HIGH_BITS);
+            chars += Long.bitCount(x & (x << 1) & (x << 2) & (x << 3) & ~(x << 4) & HIGH_BITS);
+        }
+        for (; i < end; i++) {
+            int x = segment.get(i) & 0xFF;
+            highBits |= x;
+            chars += units(x) - 1;
+        }
+        return chars << 1 | ((highBits & HIGH_BITS) == 0 ? 1 : 0);
+    }
+
+    /**
+     * @return the number of line breaks before a byte offset
+     */
+    private long lineBreaksBefore(long byteOffset) {
+        int b = (int) (byteOffset >>> BLOCK_BITS);
+        if (b >= blocks()) {
+            b = blocks();
+        }
+        if (b > linesIndexed) {
+            indexLines(b);
+        }
+        return blockLines[b] + countLineBreaks((long) b << BLOCK_BITS, byteOffset);
+    }
+
+    @Override
+    public long lineBreaks(long from, long to) {
+        return lineBreaksBefore(byteOffset(to)) - lineBreaksBefore(byteOffset(from));
+    }
+
+    @Override
+    public long indexOfLineBreak(long from, long n) {
+        long fromByte = byteOffset(from);
+        long target = lineBreaksBefore(fromByte) + n;
+
+        // find the block containing the line break, indexing further blocks while it is not reached
+        int low = (int) (fromByte >>> BLOCK_BITS);
+        while (blockLines[linesIndexed] <= target) {
+            if (linesIndexed == blocks()) {
+                return -1;
+            }
+            indexLines(Math.min(blocks(), linesIndexed * 2 + LINE_INDEX_BATCH));
+        }
+        int high = linesIndexed - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockLines[mid] <= target) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        long skip = target - blockLines[low];
+        for (long pos = (long) low << BLOCK_BITS; ; pos++) {
+            if (get(pos) == '\n' && skip-- == 0) {
+                return charIndex(pos);
+            }
+        }
+    }
+
+    /**
+     * @return number of UTF-16 characters of a sequence starting with given byte, 0 for continuation bytes
+     */
+    private static int units(int b) {
+        if ((b & 0xC0) == 0x80) {
+            return 0;
+        }
+        return b >= 0xF0 && b < 0xF8 ? 2 : 1;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return number of characters in the file, counting the blocks that were not indexed yet
+     */
+    long length() {
+        indexChars(blocks());
+        return blockChars[blocks()];
+    }
+
+    /**
+     * @return the byte at given position, or 0 if the position is past the end of the file
+     */
+    byte get(long position) {
+        if (position >= size) {
+            return 0;
+        }
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Copies bytes into an array.
+     */
+    void get(long position, byte[] dst, int offset, int length) {
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+            int index = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(length, segment.capacity() - index);
+            segment.get(index, dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Writes the bytes within a range to a channel, straight from the mapping.
+     */
+    void write(long from, long to, WritableByteChannel out) throws IOException {
+        while (from < to) {
+            MappedByteBuffer segment = segments[(int) (from >>> SEGMENT_BITS)];
+            int index = (int) (from & (SEGMENT_SIZE - 1));
+            ByteBuffer bytes = segment.slice(index, (int) Math.min(to - from, segment.capacity() - index));
+            while (bytes.hasRemaining()) {
+                from += out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * @return the number of characters before a byte offset
+     */
+    long charIndex(long byteOffset) {
+        if (ascii) {
+            return byteOffset;
+        }
+        if (byteOffset >= size) {
+            return length();
+        }
+        int b = (int) (byteOffset >>> BLOCK_BITS);
+        indexChars(b);
+        long chars = blockChars[b];
+        if (isAscii(b)) {
+            return chars + byteOffset - ((long) b << BLOCK_BITS);
+        }
+        for (long pos = (long) b << BLOCK_BITS; pos < byteOffset; pos++) {
+            chars += units(get(pos) & 0xFF);
+        }
+        return chars;
+    }
+
+    /**
+     * @return the offset of the first byte of the character at a character offset
+     */
+    long byteOffset(long charIndex) {
+        return locate(charIndex) >>> 1;
+    }
+
+    /**
+     * @return the byte offset of the character at a character offset, shifted left by one. The lowest bit is set if
+     * the character offset points to the second half of a surrogate pair.
+     */
+    private long locate(long charIndex) {
+        if (ascii) {
+            return charIndex << 1;
+        }
+
+        // index further blocks while the character is not reached
+        int indexed = charsIndexed;
+        while (indexed < blocks() && blockChars[indexed] <= charIndex) {
+            // a character takes at most three bytes per UTF-16 unit, unless there are stray continuation bytes
+            long block = Math.max((3 * charIndex + 3) >>> BLOCK_BITS, 2L * indexed) + 1;
+            indexChars((int) Math.min(blocks(), block));
+            indexed = charsIndexed;
+        }
+        if (charIndex >= blockChars[indexed]) {
+            return size << 1;
+        }
+
+        // find the last block starting before the character
+        int low = 0;
+        int high = indexed - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockChars[mid] <= charIndex) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        long pos = (long) low << BLOCK_BITS;
+        if (isAscii(low)) {
+            return (pos + charIndex - blockChars[low]) << 1;
+        }
+
+        long chars = blockChars[low];
+        while ((get(pos) & 0xC0) == 0x80) {
+            pos++;
+        }
+        while (true) {
+            int n = units(get(pos) & 0xFF);
+            if (chars + n > charIndex) {
+                return pos << 1 | (charIndex - chars);
+            }
+            chars += n;
+            pos = nextCharacter(pos);
+        }
+    }
+
+    /**
+     * @return the position of the character following the one at given position, ignoring stray continuation bytes
+     */
+    private long nextCharacter(long pos) {
+        do {
+            pos++;
+        } while (pos < size && (get(pos) & 0xC0) == 0x80);
+        return pos;
+    }
+
+    @Override
+    public char charAt(long charIndex) {
+        // a character takes at least one byte
+        if (charIndex >= size) {
+            return '\0';
+        }
+        if (ascii) {
+            return (char) get(charIndex);
+        }
+        long l = locate(charIndex);
+        return decode(l >>> 1, (l & 1) != 0);
+    }
+
+    @Override
+    public void getChars(long from, long to, char[] dst, int dstBegin) {
+        if (ascii) {
+            copyAscii(from, to, dst, dstBegin);
+            return;
+        }
+
+        long l = locate(from);
+        long pos = l >>> 1;
+        boolean secondHalf = (l & 1) != 0;
+        int end = dstBegin + (int) (to - from);
+        while (dstBegin < end) {
+            int b = (int) (pos >>> BLOCK_BITS);
+            if (pos < size && isAscii(b)) {
+                // the rest of the block needs no decoding
+                long n = Math.min(end - dstBegin, Math.min(size, (long) (b + 1) << BLOCK_BITS) - pos);
+                copyAscii(pos, pos + n, dst, dstBegin);
+                dstBegin += (int) n;
+                pos += n;
+                continue;
+            }
+            dst[dstBegin++] = decode(pos, secondHalf);
+            if (!secondHalf && units(get(pos) & 0xFF) == 2 && dstBegin < end) {
+                dst[dstBegin++] = decode(pos, true);
+            }
+            secondHalf = false;
+            pos = nextCharacter(pos);
+        }
+    }
+
+    /**
+     * Decodes the character starting at a byte position.
+     *
+     * @param low Whether to return the second half of a surrogate pair
+     * @return the character, or U+FFFD if the bytes are no valid UTF-8 sequence
+     */
+    private char decode(long pos, boolean low) {
+        int b0 = get(pos) & 0xFF;
+        if (b0 < 0x80) {
+            return (char) b0;
+        } else if (b0 >= 0xF0 && b0 < 0xF8) {
+            int codePoint = ((b0 & 0x07) << 18) | ((get(pos + 1) & 0x3F) << 12)
+                    | ((get(pos + 2) & 0x3F) << 6) | (get(pos + 3) & 0x3F);
+            if (!Character.isSupplementaryCodePoint(codePoint) || !Character.isValidCodePoint(codePoint)) {
+                return '\uFFFD';
+            }
+            return low ? Character.lowSurrogate(codePoint) : Character.highSurrogate(codePoint);
+        } else if (b0 >= 0xE0 && b0 < 0xF0) {
+            return (char) (((b0 & 0x0F) << 12) | ((get(pos + 1) & 0x3F) << 6) | (get(pos + 2) & 0x3F));
+        } else if (b0 >= 0xC0 && b0 < 0xE0) {
+            return (char) (((b0 & 0x1F) << 6) | (get(pos + 1) & 0x3F));
+        }
+        return '\uFFFD';
+    }
+
+    /**
+     * Copies a range of ASCII bytes into an array of characters.
+     */
+    private void copyAscii(long from, long to, char[] dst, int dstBegin) {
+        // copy the bytes in bulk and widen them, which is much faster than reading them one by one
+        byte[] bytes = new byte[(int) Math.min(to - from, ASCII_COPY_SIZE)];
+        for (long pos = from; pos < to; ) {
+            int n = (int) Math.min(to - pos, bytes.length);
+            get(pos, bytes, 0, n);
+            for (int i = 0; i < n; i++) {
+                dst[dstBegin++] = (char) bytes[i];
+            }
+            pos += n;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package text;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.LongStream;
+
+/**
+ * Positions of all occurrences of a string in a piece list, kept up to date while the text is edited.
+ * <p>
+ * The text is split into gaps that each start at a match, except for the first one, and stored in a
+ * {@link PieceTree}. A match position is the sum of the lengths of the gaps before it, so an edit shifts all later
+ * matches by changing a single gap, which is O(log n). Only the matches near an edit are searched again.
+ * <p>
+ * The gaps are persistent like the pieces, so the index keeps its root for every version of the pieces that is
+ * still referenced, by the history for instance. Undo and redo return to the root of the restored version instead
+ * of searching the text again.
+ * <p>
+ * The index is not registered as a listener by itself: whoever owns it passes the events of the piece list to
+ * {@link #update(UpdateEvent)} before reading it.
+ */
+public final class MatchIndex implements UpdateEventListener {
+    /**
+     * A section of the text, starting at a match or at the start of the text.
+     */
+    record Gap(long length, boolean match) implements PieceTree.Segment<Gap> {
+        @Override
+        public Gap slice(long from, long to) {
+            return new Gap(to - from, match && from == 0);
+        }
+
+        @Override
+        public boolean canMerge(Gap next) {
+            return !next.match;
+        }
+
+        @Override
+        public Gap merge(Gap next) {
+            return new Gap(length + next.length, match);
+        }
+    }
+
+    private final PieceList text;
+    private final TextSearch search;
+    private PieceTree.Node<Gap> root;
+    // piece tables compare by identity, and the entries go away with the versions dropped from the history
+    private final Map<PieceTable, PieceTree.Node<Gap>> versions = new WeakHashMap<>();
+
+    /**
+     * Searches the whole text for a string.
+     *
+     * @param query The string to search for, not empty
+     */
+    public MatchIndex(PieceList text, String query) {
+        this.text = text;
+        this.search = new TextSearch(query);
+        rebuild();
+    }
+
+    private void rebuild() {
+        Snapshot s = text.snapshot();
+        root = gaps(0, s.length(), search.findAll(s, 0, s.length()));
+        versions.put(s.pieces, root);
+    }
+
+    /**
+     * Returns to the matches of the restored version, which are only unknown if it is older than the index.
+     */
+    private void restore() {
+        PieceTree.Node<Gap> r = versions.get(text.snapshot().pieces);
+        if (r != null) {
+            root = r;
+        } else {
+            rebuild();
+        }
+    }
+
+    /**
+     * @return the number of matches
+     */
+    public int count() {
+        Gap first = PieceTree.first(root);
+        return PieceTree.count(root) - (first != null && !first.match ? 1 : 0);
+    }
+
+    /**
+     * @return the position of the first match at or after given position, or -1 if there is none
+     */
+    public long next(long position) {
+        PieceTree.Location<Gap> l = PieceTree.locate(root, Math.max(0, position));
+        if (l == null) {
+            return -1;
+        }
+        if (l.offset() == 0 && l.piece().match) {
+            return position;
+        }
+        // every gap but the first one starts at a match
+        long end = position - l.offset() + l.piece().length;
+        return end < PieceTree.length(root) ? end : -1;
+    }
+
+    /**
+     * @return the position of the last match before given position, or -1 if there is none
+     */
+    public long previous(long position) {
+        PieceTree.Location<Gap> l = PieceTree.locate(root, Math.min(position, PieceTree.length(root)) - 1);
+        return l != null && l.piece().match ? position - 1 - l.offset() : -1;
+    }
+
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive)
+     * @return the positions of the matches starting within a range in ascending order
+     */
+    public long[] matches(long from, long to) {
+        LongStream.Builder matches = LongStream.builder();
+        long position = Math.max(0, from);
+        for (Iterator<Gap> it = PieceTree.iterator(PieceTree.range(root, position, to)); it.hasNext(); ) {
+            Gap g = it.next();
+            if (g.match) {
+                matches.add(position);
+            }
+            position += g.length;
+        }
+        return matches.build().toArray();
+    }
+
+    /**
+     * @return the length of the string searched for
+     */
+    public int length() {
+        return search.length();
+    }
+
+    @Override
+    public void update(UpdateEvent e) {
+        switch (e) {
+            case UpdateEvent.Insert(long position, int length) -> insert(position, length);
+            case UpdateEvent.Delete(long from, long to) -> delete(from, to);
+            case UpdateEvent.Batch(List<UpdateEvent.Change> changes) -> {
+                // changes are given in positions after the batch, so the ones before a change are already applied
+                for (UpdateEvent.Change c : changes) {
+                    delete(c.from(), c.from() + c.removed());
+                    insert(c.from(), c.inserted());
+                }
+            }
+            case UpdateEvent.Load(long from, long to) -> insert(from, to - from);
+            case UpdateEvent.Undo u -> restore();
+            case UpdateEvent.Redo r -> restore();
+            case UpdateEvent.Style s -> {
+            }
+        }
+        versions.put(text.snapshot().pieces, root);
+    }
+
+    private void insert(long position, long length) {
+        PieceTree.Split<Gap> s = PieceTree.split(root, position);
+        root = PieceTree.coalesce(PieceTree.coalesce(s.left(), PieceTree.of(new Gap(length, false))), s.right());
+        // matches crossing the position are broken, and new ones may cross or lie within the inserted text
+        rescan(position - search.length() + 1, position + length);
+    }
+
+    private void delete(long from, long to) {
+        PieceTree.Split<Gap> a = PieceTree.split(root, from);
+        PieceTree.Split<Gap> b = PieceTree.split(a.right(), to - from);
+        root = PieceTree.coalesce(a.left(), b.right());
+        rescan(from - search.length() + 1, from);
+    }
+
+    /**
+     * Searches the matches starting within a range again.
+     */
+    private void rescan(long from, long to) {
+        from = Math.max(0, from);
+        to = Math.min(to, PieceTree.length(root));
+        if (from >= to) {
+            return;
+        }
+        PieceTree.Split<Gap> a = PieceTree.split(root, from);
+        PieceTree.Split<Gap> b = PieceTree.split(a.right(), to - from);
+        PieceTree.Node<Gap> middle = gaps(from, to, search.findAll(text.snapshot(), from, to));
+        root = PieceTree.coalesce(PieceTree.coalesce(a.left(), middle), b.right());
+    }
+
+    /**
+     * @param matches Positions of the matches within the range in ascending order
+     * @return the gaps of a range of the text
+     */
+    private static PieceTree.Node<Gap> gaps(long from, long to, long[] matches) {
+        List<Gap> gaps = new ArrayList<>(matches.length + 1);
+        long start = from;
+        boolean match = false;
+        for (long m : matches) {
+            gaps.add(new Gap(m - start, match));
+            start = m;
+            match = true;
+        }
+        gaps.add(new Gap(to - start, match));
+        return PieceTree.build(gaps.iterator());
+    }
+}
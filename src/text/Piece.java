@@ -1,31 +1,60 @@
 package text;
 
-import javafx.scene.paint.Paint;
-import javafx.scene.text.Font;
-
 import java.io.File;
 
-public class Piece {
-    public static final Font defaultFont = javafx.scene.text.Font.font("Arial", 32);
-    public static final Paint defaultColor = Paint.valueOf("000000");
-
-    File file;
-    int offset;
-    int length;
-    Piece next;
+/**
+ * An immutable reference to a section of a file.
+ */
+public class Piece implements PieceTree.Segment<Piece> {
+    final File file;
+    final long offset;
+    final long length;
 
-    Font font;
-    Paint color;
-
-    public Piece(File file, int offset, int length) {
-        this(file, offset, length, defaultFont, defaultColor);
-    }
+    // number of line breaks in this piece, computed on first use, possibly by several threads at once
+    volatile long lineBreaks = -1;
 
-    public Piece(File file, int offset, int length, Font font, Paint color) {
+    public Piece(File file, long offset, long length) {
         this.file = file;
         this.offset = offset;
         this.length = length;
-        this.font = font;
-        this.color = color;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @param from Start of the section, relative to this piece (inclusive)
+     * @param to   End of the section, relative to this piece (exclusive)
+     * @return a piece referencing a section of this piece
+     */
+    @Override
+    public Piece slice(long from, long to) {
+        return new Piece(file, offset + from, to - from);
+    }
+
+    /**
+     * @return true if the next piece continues this piece in the same file
+     */
+    @Override
+    public boolean canMerge(Piece next) {
+        return file == next.file && offset + length == next.offset;
+    }
+
+    /**
+     * @return a piece covering this piece and the next one, see {@link #canMerge(Piece)}
+     */
+    @Override
+    public Piece merge(Piece next) {
+        Piece merged = withLength(length + next.length);
+        if (lineBreaks >= 0 && next.lineBreaks >= 0) {
+            merged.lineBreaks = lineBreaks + next.lineBreaks;
+        }
+        return merged;
+    }
+
+    Piece withLength(long length) {
+        return new Piece(file, offset, length);
     }
 }
@@ -0,0 +1,140 @@
+package text;
+
+import javafx.scene.paint.Paint;
+import javafx.scene.text.Font;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Bidirectional cursor over the characters of a piece list.
+ * <p>
+ * The cursor sits between two characters and remembers the piece it is in, so moving to the next or previous
+ * character is O(1) (amortized when crossing a piece boundary). Characters are decoded in chunks, so sequential
+ * reads don't need to look up byte offsets. It reads a {@link Snapshot}, so later edits of the piece list are not
+ * visible.
+ */
+public class PieceCursor {
+    private static final int CHUNK_SIZE = 256;
+
+    private final Snapshot snapshot;
+
+    // the current piece, or null if the text is empty
+    private final PieceTable.Walk walk;
+
+    private Piece piece;
+    private TextSource source;
+    private long pieceStart;
+    private long position;
+
+    // position of the character that was returned last, and the style run containing it
+    private long lastPosition = -1;
+    private StyleRun run;
+
+    // decoded characters of the current piece, starting at text position chunkStart
+    private final char[] chunk = new char[CHUNK_SIZE];
+    private long chunkStart;
+    private int chunkLength;
+
+    PieceCursor(Snapshot snapshot, long position) {
+        this.snapshot = snapshot;
+        this.walk = snapshot.pieces.walk(position);
+        this.position = position;
+        if (walk != null) {
+            enter();
+        }
+    }
+
+    private void enter() {
+        piece = walk.piece();
+        source = snapshot.source(piece);
+        pieceStart = walk.start();
+    }
+
+    /**
+     * @return the position of the character that is returned by the next call to next()
+     */
+    public long position() {
+        return position;
+    }
+
+    public boolean hasNext() {
+        return piece != null && (position < pieceStart + piece.length || walk.hasNext());
+    }
+
+    public boolean hasPrevious() {
+        return position > 0;
+    }
+
+    /**
+     * @return the character after the cursor, then moves the cursor forward
+     */
+    public char next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (position == pieceStart + piece.length) {
+            walk.next();
+            enter();
+        }
+        if (position < chunkStart || position >= chunkStart + chunkLength) {
+            readChunk(position, Math.min(position + CHUNK_SIZE, pieceStart + piece.length));
+        }
+        lastPosition = position;
+        return chunk[(int) (position++ - chunkStart)];
+    }
+
+    /**
+     * @return the character before the cursor, then moves the cursor backward
+     */
+    public char previous() {
+        if (!hasPrevious()) {
+            throw new NoSuchElementException();
+        }
+        if (position == pieceStart) {
+            walk.previous();
+            enter();
+        }
+        if (position <= chunkStart || position > chunkStart + chunkLength) {
+            readChunk(Math.max(position - CHUNK_SIZE, pieceStart), position);
+        }
+        lastPosition = position - 1;
+        return chunk[(int) (--position - chunkStart)];
+    }
+
+    /**
+     * Decodes a section of the current piece into the chunk.
+     */
+    private void readChunk(long from, long to) {
+        source.getChars(piece.offset + from - pieceStart, piece.offset + to - pieceStart, chunk, 0);
+        chunkStart = from;
+        chunkLength = (int) (to - from);
+    }
+
+    /**
+     * @return the font of the character that was returned last
+     */
+    public Font font() {
+        return run().font();
+    }
+
+    /**
+     * @return the color of the character that was returned last
+     */
+    public Paint color() {
+        return run().color();
+    }
+
+    /**
+     * @return the style id of the character that was returned last
+     */
+    public int style() {
+        return run().style();
+    }
+
+    private StyleRun run() {
+        if (run == null || lastPosition < run.from() || lastPosition >= run.to()) {
+            run = snapshot.styleAt(lastPosition);
+        }
+        return run;
+    }
+}
@@ -5,83 +5,284 @@ import javafx.scene.text.Font;
 import view.StyledCharacter;
 
 import java.io.*;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+public class PieceList implements Iterable<Piece>, Closeable {
+    public static final Font defaultFont = javafx.scene.text.Font.font("Arial", 32);
+    public static final Paint defaultColor = Paint.valueOf("000000");
+
+    // size of the buffer used to encode text from the add buffer while saving
+    private static final int SAVE_BUFFER_SIZE = 64 * 1024;
 
-public class PieceList implements Iterable<Piece> {
-    int totalLength;
-    final Piece firstPiece;
+    // documents of at least this many bytes are opened in large-file mode, see open(File)
+    static final long LARGE_FILE_SIZE = 1L << 31;
+    // longest style line that is looked for in front of a document in large-file mode
+    private static final int LEGACY_LINE_LIMIT = 16 << 20;
+    // number of bytes of a document in large-file mode that are loaded when it is opened, see finishLoading()
+    private static final long INITIAL_LOAD_SIZE = 64 << 20;
+
+    final File file;
     final File scratch;
-    final FileWriter scratchWriter;
+    final AddBuffer addBuffer;
     private final List<UpdateEventListener> listeners;
 
+    // memory mappings of the files referenced by pieces
+    private Map<File, MappedFile> mappings;
+    // the file instance of the last saved version, replaced by every save, see rebase()
+    private File saved;
+    // true if the saved versions of the document get a trigram index as well, see indexTrigrams()
+    private boolean trigramIndexed;
+
+    // the document file while only the start of its text is loaded, see finishLoading()
+    private MappedFile loading;
+    // character offset in the file behind the loaded text, and byte offset behind all of the text
+    private long loadedTo;
+    private long loadingEnd;
+    // styles of the whole text while it is loading, or null if it has none
+    private List<StyleRun> loadingStyles;
+
+
+    // pieces holding the text in text order
+    private final Backend backend;
+    private PieceTable pieces;
+
+    // styles of the text, kept apart from the pieces so text edits and style edits don't fragment each other
+    // ids of the styles in the StyleTable
+    private StyleRuns<Integer> styles;
+
+    private final History history = new History();
+
+    // snapshot of the current version, created on first use
+    private Snapshot snapshot;
+
+    // position after the last typed character, as long as further typed characters are undone together with it
+    private long typedEnd = -1;
+
+    // edits of the current batch, or null if there is none
+    private ChangeSet batch;
+    private int batchDepth;
+    // true once the version before the current batch was recorded in the history
+    private boolean batchRecorded;
+
+    /**
+     * Storage of the pieces. Both keep every version immutable, so snapshots and the undo history work the same.
+     */
+    public enum Backend {
+        /**
+         * Balanced tree of piece objects. Edits are O(log n), suited for documents with many pieces.
+         */
+        TREE,
+        /**
+         * Primitive arrays of the pieces and their end positions, in blocks. Edits copy the blocks they touch, but
+         * finding a position is a binary search and reading walks contiguous memory, suited for documents with few
+         * pieces that are mostly read.
+         */
+        ARRAYS;
+
+        PieceTable of(Piece piece) {
+            return this == TREE ? TreePieceTable.of(piece) : ArrayPieceTable.of(piece);
+        }
+    }
+
+    /**
+     * @param firstPiece The section of the original file holding the text. Its offset and length are given in bytes.
+     */
     public PieceList(Piece firstPiece) throws IOException {
-        this.firstPiece = firstPiece;
-        this.totalLength = firstPiece.length;
-        this.scratch = new File(".scratch");
-        this.scratch.delete();
-        this.scratch.createNewFile();
-        this.scratchWriter = new FileWriter(scratch, StandardCharsets.UTF_8);
+        this(firstPiece, Backend.TREE);
+    }
+
+    /**
+     * @param firstPiece The section of the original file holding the text. Its offset and length are given in bytes.
+     * @param backend    Storage of the pieces.
+     */
+    public PieceList(Piece firstPiece, Backend backend) throws IOException {
+        this(firstPiece, backend, false);
+    }
+
+    /**
+     * @param firstPiece The section of the original file holding the text. Its offset and length are given in bytes.
+     * @param backend    Storage of the pieces.
+     * @param spill      Whether inserted text is kept in a temporary file the operating system can write it back to,
+     *                   instead of in memory, for documents that receive large insertions.
+     */
+    public PieceList(Piece firstPiece, Backend backend, boolean spill) throws IOException {
+        this.backend = backend;
+        this.file = firstPiece.file;
+        // every document has its own add buffer, pieces on it are recognized by the identity of this file object
+        if (spill) {
+            this.scratch = Files.createTempFile("ssw_editor-", ".add").toFile();
+            this.scratch.deleteOnExit();
+            this.addBuffer = new AddBuffer(scratch.toPath());
+        } else {
+            this.scratch = new File("ssw_editor-memory.add");
+            this.addBuffer = new AddBuffer();
+        }
         this.listeners = new ArrayList<>();
+        this.mappings = new IdentityHashMap<>();
+
+        // pieces on files use character offsets
+        this.saved = file;
+        MappedFile m = mapping(file);
+        long from = m.charIndex(firstPiece.offset);
+        long end = firstPiece.offset + firstPiece.length;
+        if (firstPiece.length >= LARGE_FILE_SIZE) {
+            // the characters of the rest are counted in the background
+            this.loading = m;
+            this.loadingEnd = end;
+            end = firstPiece.offset + INITIAL_LOAD_SIZE;
+        }
+        long to = m.charIndex(end);
+        this.loadedTo = to;
+        this.pieces = backend.of(new Piece(file, from, to - from));
+        this.styles = new StyleRuns<>(to - from, StyleTable.DEFAULT);
     }
 
     /**
-     * Split at given position.
-     *
-     * @param position Position to place the split after. The character at this position is part of the left split.
-     * @return The left side of the split
-     */
-    private Piece split(int position) {
-        // find piece containing the position
-        Piece p = firstPiece;
-        int length = p.length;
-        while (position > length) {
-            p = p.next;
-            length += p.length;
+     * Opens a document together with its styles. They are read from the style file next to the document or, for
+     * documents saved by older versions, from the style line in front of the text.
+     * <p>
+     * Documents of {@link #LARGE_FILE_SIZE} bytes or more are opened in large-file mode: the style line is only
+     * looked for within the first {@link #LEGACY_LINE_LIMIT} characters, so a document without line breaks is not
+     * read into memory. Only the first {@link #INITIAL_LOAD_SIZE} bytes of the text are loaded right away, the rest
+     * once the file is indexed, see {@link #finishLoading()}. Texts beyond 2^31 characters have no int length, see
+     * {@link #isLarge()}.
+     */
+    public static PieceList open(File file) throws IOException {
+        List<StyleRun> styles = StyleFile.read(file);
+        PieceList pl;
+        if (styles != null) {
+            pl = new PieceList(new Piece(file, 0, file.length()));
+        } else {
+            String firstLine = readStyleLine(file, file.length() < LARGE_FILE_SIZE ? Integer.MAX_VALUE : LEGACY_LINE_LIMIT);
+            styles = StyleFile.readLegacy(firstLine);
+            // piece offsets are given in bytes
+            int offset = styles != null ? firstLine.getBytes(StandardCharsets.UTF_8).length + 1 : 0;
+            pl = new PieceList(new Piece(file, offset, file.length() - offset));
         }
-        // split piece p at given position
-        if (position != length) {
-            int split2 = length - position;
-            int split1 = p.length - split2;
-            p.length = split1;
-            Piece q = new Piece(p.file, p.offset + split1, split2, p.font, p.color);
-            q.next = p.next;
-            p.next = q;
+        if (styles != null) {
+            pl.loadStyles(styles);
+            if (pl.loading != null) {
+                pl.loadingStyles = styles;
+            }
         }
-        return p;
+        return pl;
     }
 
     /**
-     * Inserts a character at a position in the text.
-     *
-     * @param position  The position after which the character should be inserted.
-     * @param character The character (UTF-8).
+     * @return completes once the rest of a document in large-file mode can be loaded without waiting, see
+     * {@link #finishLoading()}
      */
-    public void insert(int position, int character) {
-        Piece p = split(position);
+    public CompletableFuture<Void> loaded() {
+        return loading == null ? CompletableFuture.completedFuture(null) : loading.charsIndexed();
+    }
 
-        // p is not the last piece on the scratch file
-        if (p.file != scratch || p.length + p.offset < scratch.length()) {
-            Piece q = new Piece(scratch, (int) scratch.length(), 0);
-            q.next = p.next;
-            p.next = q;
-            p = q;
+    /**
+     * Loads the text of a document in large-file mode behind the part loaded when it was opened, waiting for the
+     * characters of the file to be counted if they are not yet. Listeners receive an {@link UpdateEvent.Load}.
+     * <p>
+     * Edits, saving and the methods that need the whole text load it first, so they never see a part of it. Reading
+     * the loaded part does not wait.
+     */
+    public void finishLoading() {
+        if (loading == null) {
+            return;
         }
+        long from = length();
+        long n = loading.charIndex(loadingEnd) - loadedTo;
+        loading = null;
+        pieces = pieces.insert(from, new Piece(saved, loadedTo, n));
+        styles = styles.insert(from, n);
+        if (loadingStyles != null) {
+            loadStyles(loadingStyles);
+            loadingStyles = null;
+        }
+        fireUpdateEvent(new UpdateEvent.Load(from, from + n));
+    }
 
-        try {
-            scratchWriter.write(character);
-            scratchWriter.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * @return the first line of a file without the line break, or null if it can't be a style line because it does
+     * not start with a digit or is longer than the limit
+     */
+    private static String readStyleLine(File file, int limit) throws IOException {
+        try (Reader in = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            StringBuilder line = new StringBuilder();
+            int c = in.read();
+            if (c < '0' || c > '9') {
+                return null;
+            }
+            while (c != -1 && c != '\n' && c != '\r') {
+                if (line.length() == limit) {
+                    return null;
+                }
+                line.append((char) c);
+                c = in.read();
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Replaces all styles by the ones of a loaded document, in a single pass over the runs. Text not covered by a
+     * run gets the default style.
+     *
+     * @param runs Non-overlapping runs in text order
+     */
+    private void loadStyles(List<StyleRun> runs) {
+        long length = length();
+        List<StyleRuns.Span<Integer>> spans = new ArrayList<>();
+        long position = 0;
+        for (StyleRun r : runs) {
+            long from = Math.max(r.from(), position);
+            long to = Math.min(r.to(), length);
+            if (from >= to) {
+                continue;
+            }
+            if (from > position) {
+                spans.add(new StyleRuns.Span<>(from - position, StyleTable.DEFAULT));
+            }
+            spans.add(new StyleRuns.Span<>(to - from, r.style()));
+            position = to;
+        }
+        if (position < length) {
+            spans.add(new StyleRuns.Span<>(length - position, StyleTable.DEFAULT));
         }
+        styles = StyleRuns.of(spans.iterator(), StyleTable.DEFAULT);
+    }
 
-        p.length++;
-        totalLength++;
-        fireUpdateEvent(new UpdateEvent.Insert(position, String.valueOf((char) character)));
+    /**
+     * Inserts a section of the add buffer into the text. If the piece before the position is the last piece on the
+     * add buffer, it is extended instead of creating a new piece. The inserted text takes the style of the character
+     * before it.
+     *
+     * @param position      The position after which the section should be inserted.
+     * @param scratchOffset Offset of the section in the add buffer.
+     * @param length        Length of the section.
+     */
+    private void insertScratch(long position, int scratchOffset, int length) {
+        pieces = pieces.insert(position, new Piece(scratch, scratchOffset, length));
+        styles = styles.insert(position, length);
+    }
+
+    /**
+     * Inserts a character at a position in the text.
+     *
+     * @param position  The position after which the character should be inserted.
+     * @param character The character (UTF-8).
+     */
+    public void insert(long position, int character) {
+        recordInsert(position, String.valueOf((char) character));
+        int scratchOffset = addBuffer.append((char) character);
+        insertScratch(position, scratchOffset, 1);
+        fireUpdateEvent(new UpdateEvent.Insert(position, 1));
     }
 
     /**
@@ -90,29 +291,11 @@ public class PieceList implements Iterable<Piece> {
      * @param position The position after which the character should be inserted.
      * @param text     The string.
      */
-    public void insert(int position, String text) {
-        Piece p = split(position);
-
-        // p is not the last piece on the scratch file
-        if (p.file != scratch || p.length + p.offset < scratch.length()) {
-            Piece q = new Piece(scratch, (int) scratch.length(), 0);
-            q.next = p.next;
-            p.next = q;
-            p = q;
-        }
-
-        for (char character : text.toCharArray()) {
-            try {
-                scratchWriter.write(character);
-                scratchWriter.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        p.length += text.length();
-        totalLength += text.length();
-        fireUpdateEvent(new UpdateEvent.Insert(position, text));
+    public void insert(long position, String text) {
+        recordInsert(position, text);
+        int scratchOffset = addBuffer.append(text);
+        insertScratch(position, scratchOffset, text.length());
+        fireUpdateEvent(new UpdateEvent.Insert(position, text.length()));
     }
 
     /**
@@ -121,36 +304,168 @@ public class PieceList implements Iterable<Piece> {
      * @param from Delete text after this position.
      * @param to   Delete text before and at this position.
      */
-    public void delete(int from, int to) {
-        Piece a = split(from);
-        Piece b = split(to);
-        a.next = b.next;
-        totalLength = totalLength - (to - from);
+    public void delete(long from, long to) {
+        record(from);
+        pieces = pieces.delete(from, to);
+        styles = styles.delete(from, to);
         fireUpdateEvent(new UpdateEvent.Delete(from, to));
     }
 
+    /**
+     * Replaces sections of equal length by the same text, e.g. all matches of a search. The text is appended to the
+     * add buffer once and referenced by all sections, the pieces and styles are rebuilt in a single pass, and
+     * listeners receive a single {@link UpdateEvent.Batch}. The replacement is undone at once. Each replacement takes
+     * the style of the character before its section.
+     *
+     * @param positions   Sorted start positions of the sections. Sections overlapping an earlier one are skipped.
+     * @param length      Length of each section
+     * @param replacement The text replacing each section
+     * @return the number of replaced sections
+     */
+    public int replaceAll(long[] positions, long length, String replacement) {
+        long[] sections = new long[positions.length];
+        int count = 0;
+        for (long p : positions) {
+            if (count == 0 || p >= sections[count - 1] + length) {
+                sections[count++] = p;
+            }
+        }
+        sections = Arrays.copyOf(sections, count);
+        if (count == 0) {
+            return 0;
+        }
+
+        beginBatch();
+        record(sections[0]);
+        int offset = addBuffer.append(replacement);
+        pieces = pieces.replaceAll(sections, length, new Piece(scratch, offset, replacement.length()));
+        styles = styles.replaceAll(sections, length, replacement.length());
+        // the sections as if they were replaced one after another from left to right
+        long shift = replacement.length() - length;
+        for (int i = 0; i < count; i++) {
+            batch.add(sections[i] + i * shift, length, replacement.length());
+        }
+        commit();
+        return count;
+    }
+
     /**
      * @param from  Set style after this position
      * @param to    Set style before and at this position
-     * @param font  The font name and size
-     * @param color The color
+     * @param font  The font name and size, or null to keep the current fonts
+     * @param color The color, or null to keep the current colors
      */
-    public void setStyle(int from, int to, Font font, Paint color) {
-        Piece a = split(from);
-        Piece b = split(to);
+    public void setStyle(long from, long to, Font font, Paint color) {
+        record(from);
+        if (font != null && color != null) {
+            styles = styles.set(from, to, StyleTable.intern(font, color));
+        } else if (font != null || color != null) {
+            // keep the other half of the style of every run
+            for (StyleRun r : snapshot().getStyleRuns(from, to)) {
+                styles = styles.set(r.from(), r.to(),
+                        StyleTable.intern(font != null ? font : r.font(), color != null ? color : r.color()));
+            }
+        }
+        fireUpdateEvent(new UpdateEvent.Style(from, to, font, color));
+    }
 
-        Piece p = new Piece(null, 0, 0);
-        p.next = a.next;
+    /**
+     * Records the current version in the undo history, before it is changed by an edit at given position.
+     */
+    private void record(long position) {
+        finishLoading();
+        // a batch is undone at once
+        if (batch == null || !batchRecorded) {
+            history.record(new History.State(pieces, styles, position));
+            batchRecorded = batch != null;
+        }
+        typedEnd = -1;
+    }
 
-        while (p != null && p != b.next) {
-            if (font != null) {
-                p.font = font;
-            }
-            if (color != null) {
-                p.color = color;
-            }
-            p = p.next;
+    /**
+     * Records the current version before text is inserted. Consecutive single characters are undone at once, up to
+     * the end of the line.
+     */
+    private void recordInsert(long position, String text) {
+        if (text.length() != 1 || position != typedEnd || batch != null) {
+            record(position);
         }
+        typedEnd = text.length() == 1 && text.charAt(0) != '\n' ? position + 1 : -1;
+    }
+
+    /**
+     * Restores the version before the last edit.
+     *
+     * @return false if there is nothing to undo
+     */
+    public boolean undo() {
+        checkNoBatch();
+        History.State s = history.undo(new History.State(pieces, styles, -1));
+        if (s == null) {
+            return false;
+        }
+        restore(s);
+        fireUpdateEvent(new UpdateEvent.Undo(s.position()));
+        return true;
+    }
+
+    /**
+     * Restores the version before the last undo.
+     *
+     * @return false if there is nothing to redo
+     */
+    public boolean redo() {
+        checkNoBatch();
+        History.State s = history.redo(new History.State(pieces, styles, -1));
+        if (s == null) {
+            return false;
+        }
+        restore(s);
+        fireUpdateEvent(new UpdateEvent.Redo(s.position()));
+        return true;
+    }
+
+    private void checkNoBatch() {
+        if (batch != null) {
+            throw new IllegalStateException("undo and redo are not possible within a batch");
+        }
+    }
+
+    private void restore(History.State s) {
+        pieces = s.pieces();
+        styles = s.styles();
+        typedEnd = -1;
+    }
+
+    /**
+     * Forgets all edits, so they can't be undone.
+     */
+    public void clearHistory() {
+        history.clear();
+        typedEnd = -1;
+    }
+
+    /**
+     * Rebuilds the pieces, merging all neighbouring pieces that continue each other in the same file.
+     */
+    public void compact() {
+        pieces = pieces.compact();
+    }
+
+    /**
+     * @return the number of pieces holding the text
+     */
+    public int getPieceCount() {
+        return pieces.count();
+    }
+
+    /**
+     * Releases the add buffer of the document. The piece list can't be read afterwards, and snapshots taken before
+     * only if they were retained, see {@link Snapshot#retain()}.
+     */
+    @Override
+    public void close() throws IOException {
+        addBuffer.close();
     }
 
     public void addUpdateEventListener(UpdateEventListener l) {
@@ -161,133 +476,290 @@ public class PieceList implements Iterable<Piece> {
         this.listeners.remove(l);
     }
 
+    /**
+     * Starts a batch of edits. Until the matching {@link #commit()}, listeners are not notified. Then they receive a
+     * single {@link UpdateEvent.Batch} event with the merged changes, and all edits are undone at once. Batches may
+     * be nested, only the outermost one is committed.
+     */
+    public void beginBatch() {
+        finishLoading();
+        if (batchDepth++ == 0) {
+            batch = new ChangeSet();
+            batchRecorded = false;
+        }
+    }
+
+    /**
+     * Ends a batch of edits, see {@link #beginBatch()}.
+     */
+    public void commit() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("no batch to commit");
+        }
+        if (--batchDepth == 0) {
+            ChangeSet changes = batch;
+            batch = null;
+            typedEnd = -1;
+            if (!changes.isEmpty()) {
+                fireUpdateEvent(new UpdateEvent.Batch(changes.changes()));
+            }
+        }
+    }
+
+    boolean inBatch() {
+        return batch != null;
+    }
+
+    /**
+     * Reverts the edits of the current batch without notifying the listeners.
+     */
+    void abortBatch() {
+        if (batchRecorded) {
+            restore(history.removeLast());
+        }
+        batch = null;
+        batchDepth = 0;
+    }
+
     private void fireUpdateEvent(UpdateEvent e) {
+        if (batch != null) {
+            switch (e) {
+                case UpdateEvent.Insert(long position, int length) -> batch.add(position, 0, length);
+                case UpdateEvent.Delete(long from, long to) -> batch.add(from, to - from, 0);
+                case UpdateEvent.Style(long from, long to, Font font, Paint color) -> batch.add(from, to - from, to - from);
+                default -> throw new IllegalStateException("unexpected event in batch: " + e);
+            }
+            return;
+        }
         listeners.forEach(l -> l.update(e));
     }
 
     /**
-     * @return the character at given position
+     * @return an immutable view of the current text and styles, which can be read from any thread
      */
-    public char readCharAt(int position) {
-        // find piece containing the position
-        Piece p = firstPiece;
-        int length = p.length;
-        while (position > length - 1) {
-            if (p.next == null) {
-                return '\0';
-            }
-            p = p.next;
-            length += p.length;
+    public Snapshot snapshot() {
+        Snapshot s = snapshot;
+        if (s == null || !s.isOf(pieces, styles, mappings)) {
+            s = new Snapshot(pieces, styles, scratch, addBuffer.view(), mappings);
+            snapshot = s;
         }
+        return s;
+    }
 
-        int offset = p.offset + p.length - length + position;
+    /**
+     * @return the character at given position
+     */
+    public char readCharAt(long position) {
+        return snapshot().readCharAt(position);
+    }
 
-        try (RandomAccessFile f = new RandomAccessFile(p.file, "r")) {
-            f.seek(offset);
-            byte[] bytes = new byte[4]; // Maximum bytes needed to represent a UTF-8 character
-            f.read(bytes);
+    public StyledCharacter readStyledCharAt(long position) {
+        return snapshot().readStyledCharAt(position);
+    }
 
-            Charset utf8Charset = Charset.forName("UTF-8");
-            ByteBuffer buffer = ByteBuffer.wrap(bytes);
-            char character = utf8Charset.decode(buffer).charAt(0);
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive)
+     * @return the runs of equally styled characters within a range, cut at the range boundaries
+     */
+    public List<StyleRun> getStyleRuns(long from, long to) {
+        return snapshot().getStyleRuns(from, to);
+    }
 
-            return character;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * @return the number of the line containing given position, starting at 0
+     */
+    public long lineOfPosition(long position) {
+        if (position > length()) {
+            finishLoading();
         }
+        return snapshot().lineOfPosition(position);
     }
 
-    public StyledCharacter readStyledCharAt(int position) {
-        // find piece containing the position
-        Piece p = firstPiece;
-        int length = p.length;
-        while (position > length - 1) {
-            if (p.next == null) {
-                return null;
-            }
-            p = p.next;
-            length += p.length;
+    /**
+     * @return the position of the first character of a line, or -1 if there is no such line
+     */
+    public long positionOfLine(long line) {
+        long position = snapshot().positionOfLine(line);
+        if (position < 0 && loading != null) {
+            finishLoading();
+            position = snapshot().positionOfLine(line);
         }
+        return position;
+    }
 
-        int offset = p.offset + p.length - length + position;
+    /**
+     * @return the number of lines
+     */
+    public long lineCount() {
+        finishLoading();
+        return snapshot().lineCount();
+    }
 
-        try (RandomAccessFile f = new RandomAccessFile(p.file, "r")) {
-            f.seek(offset);
-            byte[] bytes = new byte[4]; // Maximum bytes needed to represent a UTF-8 character
-            f.read(bytes);
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive)
+     * @return the text within the range
+     */
+    public String readRange(long from, long to) {
+        return snapshot().readRange(from, to);
+    }
 
-            Charset utf8Charset = StandardCharsets.UTF_8;
-            ByteBuffer buffer = ByteBuffer.wrap(bytes);
-            char character = utf8Charset.decode(buffer).charAt(0);
+    /**
+     * Copies the text within a range into an array.
+     *
+     * @param from   Start of the range (inclusive)
+     * @param to     End of the range (exclusive)
+     * @param dst    The destination array
+     * @param offset Start offset in the destination array
+     */
+    public void readRange(long from, long to, char[] dst, int offset) {
+        snapshot().readRange(from, to, dst, offset);
+    }
 
-            return new StyledCharacter(character, p.font, p.color);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive)
+     * @return the text within the range, split into runs of equally styled characters
+     */
+    public List<StyledRun> readStyledRuns(long from, long to) {
+        return snapshot().readStyledRuns(from, to);
+    }
+
+    /**
+     * @param position Position of the character that is returned by the first call to next()
+     * @return a cursor for reading the text sequentially, starting at given position
+     */
+    public PieceCursor cursor(long position) {
+        return snapshot().cursor(position);
+    }
+
+    /**
+     * Opens the trigram index of the document, or builds it if there is none for this version, in the background.
+     * Once it is ready, searches for strings of three or more bytes only read the parts of the document that may
+     * contain them, and the inserted text. The index of a saved version is built again.
+     *
+     * @return completes once searches use the index, or exceptionally if it could not be built
+     */
+    public CompletableFuture<Void> indexTrigrams() throws IOException {
+        trigramIndexed = true;
+        return mapping(saved).indexTrigrams(saved).thenRun(() -> {
+        });
+    }
+
+    private MappedFile mapping(File file) throws IOException {
+        MappedFile m = mappings.get(file);
+        if (m == null) {
+            m = new MappedFile(file);
+            // snapshots share the map, so it is replaced instead of modified
+            Map<File, MappedFile> copy = new IdentityHashMap<>(mappings);
+            copy.put(file, m);
+            mappings = copy;
         }
+        return m;
     }
 
     /**
-     * Save the piece list to the original file.
+     * Save the piece list to the original file, and its styles to the style file next to it.
+     * <p>
+     * Both are streamed into temporary files next to the original ones, which are forced to disk and then renamed
+     * over the original files. The original file is never written, so the pieces referencing it stay valid while
+     * saving, and a failed save leaves it untouched. Memory use does not depend on the length of the text.
+     * <p>
+     * Afterwards the text is a single piece on the new file. The undo history is cleared, as the journal only holds
+     * the edits after the save.
      */
     public void save() throws IOException {
-        byte[] styleMetadata = styleMetadataLine().getBytes();
-        byte[] fileBuffer = new byte[styleMetadata.length + totalLength];
-
-        System.arraycopy(styleMetadata, 0, fileBuffer, 0, styleMetadata.length);
-
-        int currentIndex = styleMetadata.length;
-        for (Piece p : this) {
-            try (RandomAccessFile f = new RandomAccessFile(p.file, "r")) {
-                byte[] buffer = new byte[p.length];
-                f.seek(p.offset);
-                f.readFully(buffer);
-                System.arraycopy(buffer, 0, fileBuffer, currentIndex, buffer.length);
-                currentIndex += buffer.length;
+        finishLoading();
+        Snapshot snapshot = snapshot();
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        Path styleTarget = StyleFile.path(file);
+        Path styleTemp = null;
+        try {
+            if (Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class)) {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+            }
+            long size;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(SAVE_BUFFER_SIZE);
+                for (Iterator<Piece> it = snapshot.pieces(); it.hasNext(); ) {
+                    Piece p = it.next();
+                    if (snapshot.source(p) instanceof MappedFile m) {
+                        m.write(m.byteOffset(p.offset), m.byteOffset(p.offset + p.length), out);
+                    } else {
+                        addBuffer.write(p.offset, p.offset + p.length, out, buffer);
+                    }
+                }
+                out.force(true);
+                size = out.size();
             }
+
+            // text that only has the default style needs no style file
+            List<StyleRun> styles = snapshot.getStyleRuns(0, snapshot.length());
+            if (styles.size() > 1 || styles.size() == 1 && styles.getFirst().style() != StyleTable.DEFAULT) {
+                styleTemp = Files.createTempFile(target.getParent(), styleTarget.getFileName().toString(), ".tmp");
+                StyleFile.write(styleTemp, styles, size);
+                Files.move(styleTemp, styleTarget, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(styleTarget);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            if (styleTemp != null) {
+                Files.deleteIfExists(styleTemp);
+            }
+            throw e;
         }
+        rebase();
+        clearHistory();
+    }
 
-        Files.write(firstPiece.file.toPath(), fileBuffer, StandardOpenOption.TRUNCATE_EXISTING);
-    }
-
-    private String styleMetadataLine() {
-        StringBuilder sb = new StringBuilder();
-        int textPosition = 0;
-        for (Piece p : this) {
-            sb.append(textPosition);
-            sb.append(",");
-            sb.append(p.length);
-            sb.append(",");
-            sb.append(p.font.getName());
-            sb.append(",");
-            sb.append(p.font.getSize());
-            sb.append(",");
-            sb.append(p.color);
-            sb.append("|");
-            textPosition += p.length;
+    /**
+     * Replaces all pieces by a single piece on the saved file.
+     * <p>
+     * Pieces are matched to their mapping by the identity of their file, so the saved version gets a new File
+     * instance. The history is cleared after saving, so only snapshots taken before still reference the mappings of
+     * earlier versions. They keep their own map, so the mappings are dropped here and unmapped once those snapshots
+     * are garbage collected.
+     */
+    private void rebase() throws IOException {
+        long length = length();
+        saved = new File(file.getPath());
+        mappings = new IdentityHashMap<>();
+        MappedFile m = mapping(saved);
+        if (trigramIndexed) {
+            m.indexTrigrams(saved);
         }
-        return sb + "\n";
+        pieces = backend.of(new Piece(saved, 0, length));
+    }
+
+    /**
+     * @return the number of characters, of the loaded part of a document in large-file mode
+     */
+    public long length() {
+        return pieces.length();
     }
 
+    /**
+     * @return the number of characters of a text shorter than 2^31 characters
+     * @throws ArithmeticException if the text is longer, see {@link #isLarge()}
+     */
     public int getTotalLength() {
-        return this.totalLength;
+        return Math.toIntExact(length());
+    }
+
+    /**
+     * @return true if the text is too long for the int length of {@link #getTotalLength()}, or may be once it is
+     * loaded
+     */
+    public boolean isLarge() {
+        return loading != null || length() > Integer.MAX_VALUE;
     }
 
     @Override
     public Iterator<Piece> iterator() {
-        return new Iterator<>() {
-            Piece current = firstPiece;
-
-            @Override
-            public boolean hasNext() {
-                return current != null;
-            }
-
-            @Override
-            public Piece next() {
-                Piece result = current;
-                current = current.next;
-                return result;
-            }
-        };
+        return pieces.iterator();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package text;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The pieces of a text in text order. A piece table is immutable: edits return a new version, which may share
+ * storage with the old one, so snapshots and the undo history keep old versions without copying them.
+ * <p>
+ * There are two implementations, see {@link PieceList.Backend}: a balanced tree of piece objects, where an edit is
+ * O(log n), and blocks of parallel primitive arrays, where an edit copies a block but reading walks contiguous
+ * memory.
+ */
+interface PieceTable extends Iterable<Piece> {
+    /**
+     * @return the number of characters
+     */
+    long length();
+
+    /**
+     * @return the number of pieces
+     */
+    int count();
+
+    /**
+     * @return estimated number of bytes this version holds in addition to the version it was derived from
+     */
+    long editBytes();
+
+    /**
+     * @return the piece containing the character at given position, or null if the position is out of range
+     */
+    PieceTree.Location<Piece> locate(long position);
+
+    /**
+     * Inserts a piece at a position. A piece spanning the position is split, and the piece is merged with its
+     * neighbours where possible.
+     */
+    PieceTable insert(long position, Piece piece);
+
+    /**
+     * Removes the characters within a range.
+     */
+    PieceTable delete(long from, long to);
+
+    /**
+     * Replaces sections of equal length by the same piece, building the new version in a single pass.
+     *
+     * @param positions Sorted start positions of non-overlapping sections
+     */
+    default PieceTable replaceAll(long[] positions, long length, Piece replacement) {
+        return build(PieceTree.replaceAll(iterator(), positions, length, i -> replacement));
+    }
+
+    /**
+     * @return a version with all neighbouring pieces merged that continue each other
+     */
+    PieceTable compact();
+
+    /**
+     * @return a table of the same kind holding given pieces, merging neighbouring pieces where possible
+     */
+    PieceTable build(List<Piece> pieces);
+
+    /**
+     * @return the pieces within a range in text order, cut at the range boundaries
+     */
+    Iterator<Piece> range(long from, long to);
+
+    /**
+     * @param text Snapshot used to read the pieces
+     * @return the number of the line containing given position, starting at 0
+     */
+    long lineOfPosition(long position, Snapshot text);
+
+    /**
+     * @param text Snapshot used to read the pieces
+     * @return the position of the first character of a line, or -1 if there is no such line
+     */
+    long positionOfLine(long line, Snapshot text);
+
+    /**
+     * @param text Snapshot used to read the pieces
+     * @return the number of line breaks
+     */
+    long lineBreaks(Snapshot text);
+
+    /**
+     * @return a walk starting at the piece containing given position, or at the last piece if the position is at the
+     * end, or null if there are no pieces
+     */
+    Walk walk(long position);
+
+    /**
+     * Bidirectional iterator over the pieces that knows the text position of the current piece.
+     */
+    interface Walk {
+        Piece piece();
+
+        /**
+         * @return the position of the first character of the current piece
+         */
+        long start();
+
+        boolean hasNext();
+
+        boolean hasPrevious();
+
+        /**
+         * Moves to the next piece.
+         */
+        void next();
+
+        /**
+         * Moves to the previous piece.
+         */
+        void previous();
+    }
+}
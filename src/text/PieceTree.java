@@ -0,0 +1,395 @@
+package text;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Balanced (AVL) tree of segments, ordered by text position. Used for the pieces of a piece list and for its style
+ * runs.
+ * <p>
+ * Every node stores the number of characters in its subtree, so finding the segment at a position, splitting and
+ * joining are O(log n) in the number of segments. Nodes are never modified after construction; all operations
+ * return a new root and share the untouched subtrees with the old one.
+ * <p>
+ * The number of line breaks in a subtree is computed on first use and then cached in the node. After an edit only
+ * the new nodes need to be computed, so line queries are O(log n) as well.
+ */
+final class PieceTree {
+    private PieceTree() {
+    }
+
+    /**
+     * An element of the tree covering a number of characters.
+     */
+    interface Segment<T extends Segment<T>> {
+        long length();
+
+        /**
+         * @return the section of this segment between two offsets relative to its start
+         */
+        T slice(long from, long to);
+
+        /**
+         * @return true if the next segment continues this one, so both can be replaced by a single segment
+         */
+        boolean canMerge(T next);
+
+        T merge(T next);
+    }
+
+    static final class Node<T extends Segment<T>> {
+        final Node<T> left;
+        final T piece;
+        final Node<T> right;
+
+        /**
+         * Number of characters in this subtree.
+         */
+        final long length;
+        final int height;
+
+        /**
+         * Number of segments in this subtree.
+         */
+        final int count;
+
+        // number of line breaks in this subtree, computed on first use. Volatile, as snapshots on other threads may
+        // compute it at the same time, which is harmless as they compute the same value.
+        private volatile long lineBreaks = -1;
+
+        private Node(Node<T> left, T piece, Node<T> right) {
+            this.left = left;
+            this.piece = piece;
+            this.right = right;
+            this.length = length(left) + piece.length() + length(right);
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.count = count(left) + 1 + count(right);
+        }
+    }
+
+    /**
+     * A segment together with an offset inside of it.
+     */
+    record Location<T>(T piece, long offset) {
+    }
+
+    /**
+     * The two halves of a split tree.
+     */
+    record Split<T extends Segment<T>>(Node<T> left, Node<T> right) {
+    }
+
+    static long length(Node<?> n) {
+        return n == null ? 0 : n.length;
+    }
+
+    static int height(Node<?> n) {
+        return n == null ? 0 : n.height;
+    }
+
+    static int count(Node<?> n) {
+        return n == null ? 0 : n.count;
+    }
+
+    /**
+     * @param pieceLineBreaks Counts the line breaks of a segment
+     * @return the number of line breaks in a subtree
+     */
+    static <T extends Segment<T>> long lineBreaks(Node<T> n, ToLongFunction<T> pieceLineBreaks) {
+        if (n == null) {
+            return 0;
+        }
+        if (n.lineBreaks < 0) {
+            n.lineBreaks = lineBreaks(n.left, pieceLineBreaks)
+                    + pieceLineBreaks.applyAsLong(n.piece)
+                    + lineBreaks(n.right, pieceLineBreaks);
+        }
+        return n.lineBreaks;
+    }
+
+    static <T extends Segment<T>> Node<T> of(T piece) {
+        return piece.length() == 0 ? null : new Node<>(null, piece, null);
+    }
+
+    /**
+     * @return the segment containing the character at given position, or null if the position is out of range
+     */
+    static <T extends Segment<T>> Location<T> locate(Node<T> n, long position) {
+        if (position < 0) {
+            return null;
+        }
+        while (n != null) {
+            long leftLength = length(n.left);
+            if (position < leftLength) {
+                n = n.left;
+            } else if (position < leftLength + n.piece.length()) {
+                return new Location<>(n.piece, position - leftLength);
+            } else {
+                position -= leftLength + n.piece.length();
+                n = n.right;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Concatenates left, the segment and right. All segments in left must precede all segments in right.
+     */
+    static <T extends Segment<T>> Node<T> join(Node<T> left, T piece, Node<T> right) {
+        if (piece.length() == 0) {
+            return join(left, right);
+        }
+        if (height(left) > height(right) + 1) {
+            return joinRight(left, piece, right);
+        }
+        if (height(right) > height(left) + 1) {
+            return joinLeft(left, piece, right);
+        }
+        return new Node<>(left, piece, right);
+    }
+
+    /**
+     * Concatenates two trees.
+     */
+    static <T extends Segment<T>> Node<T> join(Node<T> left, Node<T> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        T last = last(left);
+        return join(removeLast(left), last, right);
+    }
+
+    private static <T extends Segment<T>> Node<T> joinRight(Node<T> left, T piece, Node<T> right) {
+        if (height(left.right) <= height(right) + 1) {
+            Node<T> t = new Node<>(left.right, piece, right);
+            if (height(t) <= height(left.left) + 1) {
+                return new Node<>(left.left, left.piece, t);
+            }
+            return rotateLeft(new Node<>(left.left, left.piece, rotateRight(t)));
+        }
+        Node<T> t = joinRight(left.right, piece, right);
+        Node<T> result = new Node<>(left.left, left.piece, t);
+        return height(t) <= height(left.left) + 1 ? result : rotateLeft(result);
+    }
+
+    private static <T extends Segment<T>> Node<T> joinLeft(Node<T> left, T piece, Node<T> right) {
+        if (height(right.left) <= height(left) + 1) {
+            Node<T> t = new Node<>(left, piece, right.left);
+            if (height(t) <= height(right.right) + 1) {
+                return new Node<>(t, right.piece, right.right);
+            }
+            return rotateRight(new Node<>(rotateLeft(t), right.piece, right.right));
+        }
+        Node<T> t = joinLeft(left, piece, right.left);
+        Node<T> result = new Node<>(t, right.piece, right.right);
+        return height(t) <= height(right.right) + 1 ? result : rotateRight(result);
+    }
+
+    private static <T extends Segment<T>> Node<T> rotateLeft(Node<T> n) {
+        Node<T> r = n.right;
+        return new Node<>(new Node<>(n.left, n.piece, r.left), r.piece, r.right);
+    }
+
+    private static <T extends Segment<T>> Node<T> rotateRight(Node<T> n) {
+        Node<T> l = n.left;
+        return new Node<>(l.left, l.piece, new Node<>(l.right, n.piece, n.right));
+    }
+
+    /**
+     * Splits the tree at given position. A segment spanning the position is split in two.
+     *
+     * @return the trees holding the characters before the position and the characters from the position on
+     */
+    static <T extends Segment<T>> Split<T> split(Node<T> n, long position) {
+        if (n == null) {
+            return new Split<>(null, null);
+        }
+        long leftLength = length(n.left);
+        T p = n.piece;
+        if (position <= leftLength) {
+            Split<T> s = split(n.left, position);
+            return new Split<>(s.left(), join(s.right(), p, n.right));
+        }
+        if (position >= leftLength + p.length()) {
+            Split<T> s = split(n.right, position - leftLength - p.length());
+            return new Split<>(join(n.left, p, s.left()), s.right());
+        }
+        long k = position - leftLength;
+        return new Split<>(join(n.left, p.slice(0, k), null), join(null, p.slice(k, p.length()), n.right));
+    }
+
+    /**
+     * @return the segments within a range
+     */
+    static <T extends Segment<T>> Node<T> range(Node<T> n, long from, long to) {
+        return split(split(n, from).right(), to - from).left();
+    }
+
+    /**
+     * Concatenates two trees. If the last segment of left and the first segment of right can be merged, they are
+     * replaced by a single segment.
+     */
+    static <T extends Segment<T>> Node<T> coalesce(Node<T> left, Node<T> right) {
+        T l = last(left);
+        T r = first(right);
+        if (l != null && r != null && l.canMerge(r)) {
+            return join(removeLast(left), l.merge(r), removeFirst(right));
+        }
+        return join(left, right);
+    }
+
+    /**
+     * Replaces sections of equal length, in a single pass over the segments.
+     *
+     * @param segments    The segments in text order
+     * @param positions   Sorted start positions of non-overlapping sections
+     * @param replacement Returns the segment replacing the section with given index
+     * @return the segments after the replacement in text order, not merged
+     */
+    static <T extends Segment<T>> List<T> replaceAll(Iterator<T> segments, long[] positions, long length,
+                                                     IntFunction<T> replacement) {
+        List<T> result = new ArrayList<>();
+        T s = null;
+        long start = 0;
+        long end = 0;
+        // the characters before position are done
+        long position = 0;
+        for (int i = 0; i <= positions.length; i++) {
+            long to = i < positions.length ? positions[i] : Long.MAX_VALUE;
+            while (position < to) {
+                if (position >= end) {
+                    if (!segments.hasNext()) {
+                        break;
+                    }
+                    s = segments.next();
+                    start = end;
+                    end += s.length();
+                    continue;
+                }
+                long copied = Math.min(to, end);
+                result.add(position == start && copied == end ? s : s.slice(position - start, copied - start));
+                position = copied;
+            }
+            if (i < positions.length) {
+                result.add(replacement.apply(i));
+                position = to + length;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds a balanced tree from segments in text order, merging neighbouring segments where possible.
+     */
+    static <T extends Segment<T>> Node<T> build(Iterator<T> pieces) {
+        List<T> merged = new ArrayList<>();
+        while (pieces.hasNext()) {
+            T p = pieces.next();
+            if (p.length() == 0) {
+                continue;
+            }
+            if (!merged.isEmpty() && merged.getLast().canMerge(p)) {
+                merged.set(merged.size() - 1, merged.getLast().merge(p));
+            } else {
+                merged.add(p);
+            }
+        }
+        return build(merged, 0, merged.size());
+    }
+
+    private static <T extends Segment<T>> Node<T> build(List<T> pieces, int from, int to) {
+        if (from == to) {
+            return null;
+        }
+        int mid = (from + to) >>> 1;
+        return new Node<>(build(pieces, from, mid), pieces.get(mid), build(pieces, mid + 1, to));
+    }
+
+    static <T extends Segment<T>> T first(Node<T> n) {
+        if (n == null) {
+            return null;
+        }
+        while (n.left != null) {
+            n = n.left;
+        }
+        return n.piece;
+    }
+
+    static <T extends Segment<T>> T last(Node<T> n) {
+        if (n == null) {
+            return null;
+        }
+        while (n.right != null) {
+            n = n.right;
+        }
+        return n.piece;
+    }
+
+    static <T extends Segment<T>> Node<T> removeFirst(Node<T> n) {
+        if (n.left == null) {
+            return n.right;
+        }
+        return join(removeFirst(n.left), n.piece, n.right);
+    }
+
+    static <T extends Segment<T>> Node<T> removeLast(Node<T> n) {
+        if (n.right == null) {
+            return n.left;
+        }
+        return join(n.left, n.piece, removeLast(n.right));
+    }
+
+    /**
+     * Replaces the last segment of a non-empty tree.
+     */
+    static <T extends Segment<T>> Node<T> replaceLast(Node<T> n, T piece) {
+        if (n.right == null) {
+            return new Node<>(n.left, piece, null);
+        }
+        return new Node<>(n.left, n.piece, replaceLast(n.right, piece));
+    }
+
+    /**
+     * In-order iterator over the segments of a tree.
+     */
+    static <T extends Segment<T>> Iterator<T> iterator(Node<T> root) {
+        return new Iterator<>() {
+            final Deque<Node<T>> stack = new ArrayDeque<>();
+
+            {
+                pushLeft(root);
+            }
+
+            private void pushLeft(Node<T> n) {
+                while (n != null) {
+                    stack.push(n);
+                    n = n.left;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node<T> n = stack.pop();
+                pushLeft(n.right);
+                return n.piece;
+            }
+        };
+    }
+}
@@ -0,0 +1,109 @@
+package text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Search for all matches of a regular expression in a snapshot, through a {@link TextSequence} instead of a copy of
+ * the text.
+ * <p>
+ * A CharSequence holds at most 2^31 - 1 characters, so longer texts are searched in windows of
+ * {@link #WINDOW_SIZE} characters that overlap by {@link #OVERLAP} characters. Matches longer than the overlap may
+ * be missed at a window boundary.
+ */
+public final class RegexSearch {
+    static final int WINDOW_SIZE = 1 << 30;
+    static final int OVERLAP = 1 << 20;
+
+    private static final ExecutorService searcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "regex-search");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * A match, given by the positions of its first character and behind its last character.
+     */
+    public record Match(long start, long end) {
+    }
+
+    private final Pattern pattern;
+    private volatile boolean cancelled;
+
+    public RegexSearch(Pattern pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * Searches the text on the current thread.
+     *
+     * @return all matches in text order
+     * @throws CancellationException if the search was cancelled
+     */
+    public List<Match> findAll(Snapshot text) {
+        List<Match> matches = new ArrayList<>();
+        long length = text.length();
+        long from = 0;
+        while (true) {
+            long to = Math.min(length, from + WINDOW_SIZE);
+            // matches starting in the overlap are left to the next window, unless this is the last one
+            long limit = to == length ? length + 1 : to - OVERLAP;
+            Matcher m = pattern.matcher(new TextSequence(text, from, to, () -> cancelled));
+            long next = limit;
+            while (m.find()) {
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+                long start = from + m.start();
+                if (start >= limit) {
+                    break;
+                }
+                matches.add(new Match(start, from + m.end()));
+                next = Math.max(limit, from + m.end());
+            }
+            if (to == length) {
+                return matches;
+            }
+            from = next;
+        }
+    }
+
+    /**
+     * Searches the text on a background thread. Searches are run one after another, so a cancelled search should
+     * not keep a new one waiting for long.
+     *
+     * @param done Called on the background thread with all matches in text order, unless the search was cancelled or
+     *             the piece list of the snapshot is already closed
+     */
+    public void start(Snapshot text, Consumer<List<Match>> done) {
+        if (!text.retain()) {
+            return;
+        }
+        searcher.execute(() -> {
+            try {
+                List<Match> matches = findAll(text);
+                if (!cancelled) {
+                    done.accept(matches);
+                }
+            } catch (CancellationException e) {
+                // the caller is not interested in the result anymore
+            } finally {
+                // the document may have been closed meanwhile
+                text.release();
+            }
+        });
+    }
+
+    /**
+     * Stops the search. A running matcher stops when it reads the next chunk of text.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+}
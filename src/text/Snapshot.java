@@ -0,0 +1,241 @@
+package text;
+
+import view.StyledCharacter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of the text and styles of a piece list at one point in time.
+ * <p>
+ * The piece table and the style runs are persistent and the storage they reference is append-only, so a snapshot
+ * only keeps their current versions. Creating one is O(1) and copies no text. Later edits of the piece list don't
+ * affect it, so a snapshot can be read from any thread without locking while the piece list is edited.
+ */
+public final class Snapshot {
+    final PieceTable pieces;
+    // ids of the styles in the StyleTable, resolved to fonts and colors only by the style runs handed out
+    final StyleRuns<Integer> styles;
+
+    private final File scratch;
+    // the add buffer as it was when the snapshot was created
+    private final AddBuffer.View addBuffer;
+    // not modified after the snapshot was created, the piece list replaces the map when adding a mapping
+    private final Map<File, MappedFile> mappings;
+
+    Snapshot(PieceTable pieces, StyleRuns<Integer> styles, File scratch, AddBuffer.View addBuffer,
+             Map<File, MappedFile> mappings) {
+        this.pieces = pieces;
+        this.styles = styles;
+        this.scratch = scratch;
+        this.addBuffer = addBuffer;
+        this.mappings = mappings;
+    }
+
+    /**
+     * Keeps the text readable after the piece list is closed, until {@link #release()} is called. Readers on other
+     * threads retain the snapshot for as long as they read it.
+     *
+     * @return false if the piece list is already closed, the snapshot must not be read then
+     */
+    public boolean retain() {
+        return addBuffer.retain();
+    }
+
+    /**
+     * Ends reading a snapshot that was retained.
+     */
+    public void release() {
+        addBuffer.release();
+    }
+
+    /**
+     * @return true if this snapshot shows the given version
+     */
+    boolean isOf(PieceTable pieces, StyleRuns<Integer> styles, Map<File, MappedFile> mappings) {
+        return this.pieces == pieces && this.styles == styles && this.mappings == mappings;
+    }
+
+    /**
+     * @return the character at given position
+     */
+    public char readCharAt(long position) {
+        PieceTree.Location<Piece> l = pieces.locate(position);
+        if (l == null) {
+            return '\0';
+        }
+
+        return readChar(l.piece(), l.offset());
+    }
+
+    public StyledCharacter readStyledCharAt(long position) {
+        PieceTree.Location<Piece> l = pieces.locate(position);
+        if (l == null) {
+            return null;
+        }
+
+        return new StyledCharacter(readChar(l.piece(), l.offset()), styleAt(position).style());
+    }
+
+    /**
+     * @return the run of equally styled characters containing the character at given position
+     */
+    StyleRun styleAt(long position) {
+        PieceTree.Location<StyleRuns.Span<Integer>> l = styles.locate(position);
+        long from = position - l.offset();
+        return new StyleRun(from, from + l.piece().length(), l.piece().value());
+    }
+
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive)
+     * @return the runs of equally styled characters within a range, cut at the range boundaries
+     */
+    public List<StyleRun> getStyleRuns(long from, long to) {
+        List<StyleRun> runs = new ArrayList<>();
+        long start = from;
+        for (Iterator<StyleRuns.Span<Integer>> i = styles.runs(from, to); i.hasNext(); ) {
+            StyleRuns.Span<Integer> span = i.next();
+            runs.add(new StyleRun(start, start + span.length(), span.value()));
+            start += span.length();
+        }
+        return runs;
+    }
+
+    /**
+     * @return the character at an offset relative to the start of a piece
+     */
+    private char readChar(Piece p, long offset) {
+        return source(p).charAt(p.offset + offset);
+    }
+
+    /**
+     * @return the storage holding the text of a piece
+     */
+    TextSource source(Piece p) {
+        return source(p.file);
+    }
+
+    /**
+     * @return the storage holding the text of the pieces on a file
+     */
+    TextSource source(File file) {
+        return file == scratch ? addBuffer : mappings.get(file);
+    }
+
+    /**
+     * @return true if one of the files referenced by pieces has a trigram index that is ready
+     */
+    boolean hasTrigramIndex() {
+        for (MappedFile m : mappings.values()) {
+            if (m.trigrams() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of line breaks in a piece
+     */
+    long lineBreaks(Piece p) {
+        if (p.lineBreaks < 0) {
+            p.lineBreaks = source(p).lineBreaks(p.offset, p.offset + p.length);
+        }
+        return p.lineBreaks;
+    }
+
+    /**
+     * @return the number of the line containing given position, starting at 0
+     */
+    public long lineOfPosition(long position) {
+        return pieces.lineOfPosition(position, this);
+    }
+
+    /**
+     * @return the position of the first character of a line, or -1 if there is no such line
+     */
+    public long positionOfLine(long line) {
+        return pieces.positionOfLine(line, this);
+    }
+
+    /**
+     * @return the number of lines
+     */
+    public long lineCount() {
+        return pieces.lineBreaks(this) + 1;
+    }
+
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive)
+     * @return the text within the range
+     */
+    public String readRange(long from, long to) {
+        char[] chars = new char[Math.toIntExact(to - from)];
+        readRange(from, to, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Copies the text within a range into an array.
+     *
+     * @param from   Start of the range (inclusive)
+     * @param to     End of the range (exclusive)
+     * @param dst    The destination array
+     * @param offset Start offset in the destination array
+     */
+    public void readRange(long from, long to, char[] dst, int offset) {
+        for (Iterator<Piece> it = pieces.range(from, to); it.hasNext(); ) {
+            Piece p = it.next();
+            source(p).getChars(p.offset, p.offset + p.length, dst, offset);
+            offset += (int) p.length;
+        }
+    }
+
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive)
+     * @return the text within the range, split into runs of equally styled characters
+     */
+    public List<StyledRun> readStyledRuns(long from, long to) {
+        List<StyledRun> runs = new ArrayList<>();
+        for (StyleRun r : getStyleRuns(from, to)) {
+            runs.add(new StyledRun(readRange(r.from(), r.to()), r.font(), r.color()));
+        }
+        return runs;
+    }
+
+    /**
+     * @param position Position of the character that is returned by the first call to next()
+     * @return a cursor for reading the text sequentially, starting at given position
+     */
+    public PieceCursor cursor(long position) {
+        return new PieceCursor(this, Math.max(0, Math.min(position, length())));
+    }
+
+    /**
+     * @return the number of characters
+     */
+    public long length() {
+        return pieces.length();
+    }
+
+    /**
+     * @return the number of characters of a text shorter than 2^31 characters
+     * @throws ArithmeticException if the text is longer, see {@link #length()}
+     */
+    public int getTotalLength() {
+        return Math.toIntExact(length());
+    }
+
+    /**
+     * @return the pieces in text order
+     */
+    Iterator<Piece> pieces() {
+        return pieces.iterator();
+    }
+}
@@ -0,0 +1,176 @@
+package text;
+
+import javafx.scene.paint.Paint;
+import javafx.scene.text.Font;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file holding the styles of a document, stored next to it.
+ * <p>
+ * The file starts with the size of the document it belongs to, followed by a table of the distinct styles and the
+ * style runs in text order. Each run is stored as the index of its style in the table and its length, both as
+ * variable-length integers. A file is read in a single pass.
+ * <p>
+ * Older versions stored the styles in a line of text in front of the document instead, see {@link #readLegacy}.
+ */
+final class StyleFile {
+    private static final int MAGIC = 0x53535331; // "SSS1"
+
+    private StyleFile() {
+    }
+
+    static Path path(File document) {
+        File d = document.getAbsoluteFile();
+        return new File(d.getParentFile(), "." + d.getName() + ".styles").toPath();
+    }
+
+    /**
+     * Writes the style runs of a text into a file and forces it to disk.
+     *
+     * @param documentSize Size of the document in bytes
+     */
+    static void write(Path path, List<StyleRun> runs, long documentSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(documentSize);
+
+            // style ids are only valid while the editor runs, so the file has its own table
+            Map<Integer, Integer> indices = new HashMap<>();
+            List<Integer> styles = new ArrayList<>();
+            for (StyleRun r : runs) {
+                if (indices.putIfAbsent(r.style(), styles.size()) == null) {
+                    styles.add(r.style());
+                }
+            }
+            writeVarInt(out, styles.size());
+            for (int style : styles) {
+                Font font = StyleTable.font(style);
+                writeString(out, font.getName());
+                out.writeDouble(font.getSize());
+                writeString(out, StyleTable.color(style).toString());
+            }
+
+            writeVarInt(out, runs.size());
+            for (StyleRun r : runs) {
+                writeVarInt(out, indices.get(r.style()));
+                writeVarLong(out, r.to() - r.from());
+            }
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return the style runs of a document, or null if there is no style file or it belongs to another version of
+     * the document
+     */
+    static List<StyleRun> read(File document) throws IOException {
+        Path path = path(document);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        try {
+            if (in.getInt() != MAGIC || in.getLong() != Files.size(document.toPath())) {
+                return null;
+            }
+            int[] styles = new int[readVarInt(in)];
+            for (int i = 0; i < styles.length; i++) {
+                Font font = Font.font(readString(in), in.getDouble());
+                styles[i] = StyleTable.intern(font, Paint.valueOf(readString(in)));
+            }
+
+            int count = readVarInt(in);
+            List<StyleRun> runs = new ArrayList<>(count);
+            long position = 0;
+            for (int i = 0; i < count; i++) {
+                int style = styles[readVarInt(in)];
+                long length = readVarLong(in);
+                runs.add(new StyleRun(position, position + length, style));
+                position += length;
+            }
+            return runs;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+                 | NegativeArraySizeException e) {
+            // the file is damaged
+            return null;
+        }
+    }
+
+    /**
+     * Parses the style line older versions wrote in front of the text: {@code pos,len,fontName,size,color|...}.
+     *
+     * @return the style runs, or null if the line holds no styles or cannot be parsed
+     */
+    static List<StyleRun> readLegacy(String line) {
+        if (line == null || !line.endsWith("|")) {
+            return null;
+        }
+        List<StyleRun> runs = new ArrayList<>();
+        try {
+            for (String s : line.split("\\|")) {
+                String[] csv = s.split(",");
+                long start = Long.parseLong(csv[0]);
+                long end = start + Long.parseLong(csv[1]);
+                Font font = new Font(csv[2], Double.parseDouble(csv[3]));
+                runs.add(new StyleRun(start, end, StyleTable.intern(font, Paint.valueOf(csv[4]))));
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // an ordinary first line that happens to end with '|'
+            return null;
+        }
+        return runs;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        return (int) readVarLong(in);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeVarInt(out, s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(ByteBuffer in) {
+        char[] chars = new char[readVarInt(in)];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + 2 * chars.length);
+        return new String(chars);
+    }
+}
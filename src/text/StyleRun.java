@@ -0,0 +1,21 @@
+package text;
+
+import javafx.scene.paint.Paint;
+import javafx.scene.text.Font;
+
+/**
+ * A range of text in which all characters have the same style.
+ *
+ * @param from  Start of the range (inclusive)
+ * @param to    End of the range (exclusive)
+ * @param style Id of the style in the {@link StyleTable}
+ */
+public record StyleRun(long from, long to, int style) {
+    public Font font() {
+        return StyleTable.font(style);
+    }
+
+    public Paint color() {
+        return StyleTable.color(style);
+    }
+}
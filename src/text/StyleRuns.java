@@ -0,0 +1,138 @@
+package text;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Immutable assignment of a value, such as a style id, to every character of a text. The values are stored as
+ * runs of equal values in a {@link PieceTree}, independent of the pieces holding the text.
+ * <p>
+ * Inserting and deleting text shifts the runs behind the edit. Assigning a value to a range replaces all runs within
+ * it by a single run, so it is O(log n) no matter how much text or how many runs the range covers.
+ */
+final class StyleRuns<V> {
+    /**
+     * A run of characters with the same value.
+     */
+    record Span<V>(long length, V value) implements PieceTree.Segment<Span<V>> {
+        @Override
+        public Span<V> slice(long from, long to) {
+            return new Span<>(to - from, value);
+        }
+
+        @Override
+        public boolean canMerge(Span<V> next) {
+            return value.equals(next.value);
+        }
+
+        @Override
+        public Span<V> merge(Span<V> next) {
+            return new Span<>(length + next.length, value);
+        }
+    }
+
+    private final PieceTree.Node<Span<V>> root;
+
+    // value of text inserted into an empty text
+    private final V defaultValue;
+
+    /**
+     * @param length Length of the text
+     * @param value  Value of all characters, also used for text inserted after everything was deleted
+     */
+    StyleRuns(long length, V value) {
+        this(PieceTree.of(new Span<>(length, value)), value);
+    }
+
+    /**
+     * @param spans        The runs in text order
+     * @param defaultValue Value of text inserted after everything was deleted
+     */
+    static <V> StyleRuns<V> of(Iterator<Span<V>> spans, V defaultValue) {
+        return new StyleRuns<>(PieceTree.build(spans), defaultValue);
+    }
+
+    private StyleRuns(PieceTree.Node<Span<V>> root, V defaultValue) {
+        this.root = root;
+        this.defaultValue = defaultValue;
+    }
+
+    long length() {
+        return PieceTree.length(root);
+    }
+
+    int height() {
+        return PieceTree.height(root);
+    }
+
+    /**
+     * @return the run containing the character at given position, or null if the position is out of range
+     */
+    PieceTree.Location<Span<V>> locate(long position) {
+        return PieceTree.locate(root, position);
+    }
+
+    /**
+     * @return the value of the character at given position, or null if the position is out of range
+     */
+    V valueAt(long position) {
+        PieceTree.Location<Span<V>> l = locate(position);
+        return l == null ? null : l.piece().value();
+    }
+
+    /**
+     * Inserts characters that take the value of the character before them, or of the first character if they are
+     * inserted at the start.
+     */
+    StyleRuns<V> insert(long position, long length) {
+        V value = valueAt(position > 0 ? position - 1 : 0);
+        PieceTree.Split<Span<V>> s = PieceTree.split(root, position);
+        Span<V> span = new Span<>(length, value != null ? value : defaultValue);
+        return with(PieceTree.coalesce(PieceTree.coalesce(s.left(), PieceTree.of(span)), s.right()));
+    }
+
+    /**
+     * Removes the characters within a range.
+     */
+    StyleRuns<V> delete(long from, long to) {
+        PieceTree.Split<Span<V>> a = PieceTree.split(root, from);
+        PieceTree.Split<Span<V>> b = PieceTree.split(a.right(), to - from);
+        return with(PieceTree.coalesce(a.left(), b.right()));
+    }
+
+    /**
+     * Replaces sections of equal length by text that takes the value of the character before each section, building
+     * the new version in a single pass.
+     *
+     * @param positions Sorted start positions of non-overlapping sections
+     * @param inserted  Length of the text replacing each section
+     */
+    StyleRuns<V> replaceAll(long[] positions, long length, long inserted) {
+        List<Span<V>> spans = PieceTree.replaceAll(PieceTree.iterator(root), positions, length, i -> {
+            V value = valueAt(positions[i] > 0 ? positions[i] - 1 : 0);
+            return new Span<>(inserted, value != null ? value : defaultValue);
+        });
+        return of(spans.iterator(), defaultValue);
+    }
+
+    /**
+     * Assigns a value to all characters within a range.
+     */
+    StyleRuns<V> set(long from, long to, V value) {
+        PieceTree.Split<Span<V>> a = PieceTree.split(root, from);
+        PieceTree.Split<Span<V>> b = PieceTree.split(a.right(), to - from);
+        Span<V> span = new Span<>(PieceTree.length(b.left()), value);
+        return with(PieceTree.coalesce(PieceTree.coalesce(a.left(), PieceTree.of(span)), b.right()));
+    }
+
+    /**
+     * @return the runs within a range in text order, cut at the range boundaries
+     */
+    Iterator<Span<V>> runs(long from, long to) {
+        return PieceTree.iterator(PieceTree.range(root, from, to));
+    }
+
+    private StyleRuns<V> with(PieceTree.Node<Span<V>> root) {
+        return root == this.root ? this : new StyleRuns<>(root, defaultValue);
+    }
+}
@@ -0,0 +1,56 @@
+package text;
+
+import javafx.scene.paint.Paint;
+import javafx.scene.text.Font;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of all styles in use. Every distinct combination of font name, font size and color is stored once and
+ * identified by a small id, so styled text only needs to keep an int per run or character.
+ */
+public final class StyleTable {
+    private record Key(String fontName, double fontSize, Paint color) {
+    }
+
+    private static final List<Font> fonts = new ArrayList<>();
+    private static final List<Paint> colors = new ArrayList<>();
+    private static final Map<Key, Integer> ids = new HashMap<>();
+
+    /**
+     * Id of the style of text that was never styled.
+     */
+    public static final int DEFAULT = intern(PieceList.defaultFont, PieceList.defaultColor);
+
+    private StyleTable() {
+    }
+
+    /**
+     * @return the id of a style, adding it to the table if it is not yet in use
+     */
+    public static synchronized int intern(Font font, Paint color) {
+        return ids.computeIfAbsent(new Key(font.getName(), font.getSize(), color), k -> {
+            fonts.add(font);
+            colors.add(color);
+            return fonts.size() - 1;
+        });
+    }
+
+    public static synchronized Font font(int style) {
+        return fonts.get(style);
+    }
+
+    public static synchronized Paint color(int style) {
+        return colors.get(style);
+    }
+
+    /**
+     * @return the number of styles in the table
+     */
+    public static synchronized int size() {
+        return fonts.size();
+    }
+}
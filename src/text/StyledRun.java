@@ -0,0 +1,10 @@
+package text;
+
+import javafx.scene.paint.Paint;
+import javafx.scene.text.Font;
+
+/**
+ * A section of text in which all characters have the same style.
+ */
+public record StyledRun(String text, Font font, Paint color) {
+}
@@ -0,0 +1,383 @@
+package text;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.stream.LongStream;
+
+/**
+ * Search for a string in the text of a snapshot, using the Boyer-Moore-Horspool algorithm.
+ * <p>
+ * The text is read in chunks of {@link #CHUNK_SIZE} characters, so memory use does not depend on the length of the
+ * text. Neighbouring chunks overlap by one character less than the pattern, so matches crossing a chunk or piece
+ * boundary are found. On average a window is moved by about the length of the pattern, so longer patterns are
+ * found faster.
+ * <p>
+ * The parallel methods split the text into parts of {@link #TASK_SIZE} characters, which are scanned by the
+ * threads of the common fork/join pool. Snapshots can be read from any thread, so the parts are read without
+ * locking, and the results of the parts are merged in text order.
+ * <p>
+ * If a file referenced by the snapshot has a {@link TrigramIndex}, {@link #findAll(Snapshot, long, long)} only reads
+ * the blocks of that file that may contain a match, and all other pieces.
+ */
+public final class TextSearch {
+    // number of characters read at once
+    static final int CHUNK_SIZE = 1 << 16;
+    // number of window positions scanned by a single task of a parallel search
+    static final long TASK_SIZE = 16L * CHUNK_SIZE;
+
+    private final char[] pattern;
+
+    // distance to move the window, indexed by the low byte of the last character of the window when searching
+    // forward, or of the first one when searching backward. Characters sharing the low byte take the smallest one.
+    private final int[] forwardShift = new int[256];
+    private final int[] backwardShift = new int[256];
+
+    /**
+     * @param pattern The string to search for, not empty
+     */
+    public TextSearch(String pattern) {
+        if (pattern.isEmpty()) {
+            throw new IllegalArgumentException("empty search pattern");
+        }
+        this.pattern = pattern.toCharArray();
+        int m = this.pattern.length;
+        Arrays.fill(forwardShift, m);
+        Arrays.fill(backwardShift, m);
+        for (int j = 0; j < m - 1; j++) {
+            forwardShift[this.pattern[j] & 0xFF] = m - 1 - j;
+        }
+        for (int j = m - 1; j > 0; j--) {
+            backwardShift[this.pattern[j] & 0xFF] = j;
+        }
+    }
+
+    /**
+     * @return the length of the pattern
+     */
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * @param from Position at which the search starts
+     * @return the position of the first match starting at or after given position, or -1 if there is none
+     */
+    public long findNext(Snapshot text, long from) {
+        long[] match = {-1};
+        forEachMatch(text, Math.max(0, from), Long.MAX_VALUE, p -> {
+            match[0] = p;
+            return false;
+        });
+        return match[0];
+    }
+
+    /**
+     * Like {@link #findNext(Snapshot, long)}, but scans parts of the text in parallel. Parts behind a match that was
+     * already found are skipped.
+     */
+    public long findNextParallel(Snapshot text, long from) {
+        return new FirstMatch(text, Math.max(0, from), text.length(), new AtomicLong(Long.MAX_VALUE)).invoke();
+    }
+
+    /**
+     * @return the number of matches in the text, including overlapping ones
+     */
+    public long count(Snapshot text) {
+        return new MatchCount(text, 0, text.length()).invoke();
+    }
+
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive)
+     * @return the positions of all matches starting within a range in ascending order, including overlapping ones
+     */
+    public long[] findAll(Snapshot text, long from, long to) {
+        from = Math.max(0, from);
+        to = Math.min(to, text.length());
+        // small ranges, e.g. around an edit, are read faster than the index
+        if (to - from > TASK_SIZE && text.hasTrigramIndex()) {
+            long[] matches = findAllIndexed(text, from, to);
+            if (matches != null) {
+                return matches;
+            }
+        }
+        return new AllMatches(text, from, to).invoke();
+    }
+
+    /**
+     * Like {@link #findAll(Snapshot, long, long)}, but only reads the candidate blocks of pieces on indexed files.
+     * Windows that start on such a piece and end behind it are read directly.
+     *
+     * @return the matches, or null if the pattern can't be looked up in the index
+     */
+    private long[] findAllIndexed(Snapshot text, long from, long to) {
+        int m = pattern.length;
+        LongStream.Builder matches = LongStream.builder();
+        LongPredicate add = p -> {
+            matches.add(p);
+            return true;
+        };
+        // candidate blocks are the same for all pieces on a file
+        Map<TrigramIndex, BitSet> candidates = new IdentityHashMap<>();
+        long start = from;
+        for (Iterator<Piece> it = text.pieces.range(from, to); it.hasNext(); ) {
+            Piece p = it.next();
+            long end = start + p.length;
+            TrigramIndex index = text.source(p) instanceof MappedFile f ? f.trigrams() : null;
+            BitSet blocks = index != null ? candidates.computeIfAbsent(index, i -> i.candidates(pattern)) : null;
+            if (index != null && blocks == null) {
+                return null;
+            }
+            if (blocks == null) {
+                forEachMatch(text, start, end, add);
+            } else {
+                MappedFile f = (MappedFile) text.source(p);
+                // windows starting here reach into the next piece
+                long inner = Math.max(start, end - m + 1);
+                int first = (int) (f.byteOffset(p.offset) >>> TrigramIndex.BLOCK_BITS);
+                int last = (int) (f.byteOffset(p.offset + p.length) >>> TrigramIndex.BLOCK_BITS);
+                for (int b = blocks.nextSetBit(first); b >= 0 && b <= last; b = blocks.nextSetBit(b)) {
+                    int e = blocks.nextClearBit(b);
+                    // characters starting within the blocks, relative to the piece
+                    long blockFrom = f.charIndex((long) b << TrigramIndex.BLOCK_BITS) - p.offset;
+                    long blockTo = f.charIndex((long) e << TrigramIndex.BLOCK_BITS) - p.offset;
+                    forEachMatch(text, Math.max(start, start + blockFrom), Math.min(inner, start + blockTo), add);
+                    b = e;
+                }
+                forEachMatch(text, inner, end, add);
+            }
+            start = end;
+        }
+        return matches.build().toArray();
+    }
+
+    /**
+     * @param before Position before which the search starts
+     * @return the position of the last match starting before given position, or -1 if there is none
+     */
+    public long findPrevious(Snapshot text, long before) {
+        int m = pattern.length;
+        char[] buffer = new char[CHUNK_SIZE + m - 1];
+        // a match starting before the position may end behind it
+        long end = Math.min(text.length(), before + m - 1);
+        while (end >= m) {
+            long start = Math.max(0, end - buffer.length);
+            int n = (int) (end - start);
+            text.readRange(start, end, buffer, 0);
+            int i = lastIndexIn(buffer, n);
+            if (i >= 0) {
+                return start + i;
+            }
+            // the next chunk holds the matches starting before this one
+            end = start + m - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Calls an action for the position of every match starting within a range, in text order, until it returns
+     * false.
+     */
+    void forEachMatch(Snapshot text, long from, long to, LongPredicate action) {
+        int m = pattern.length;
+        to = Math.min(to, text.length() - m + 1);
+        if (from >= to) {
+            return;
+        }
+        // small ranges, e.g. around an edit, don't need a buffer for a whole chunk
+        char[] buffer = new char[(int) Math.min(CHUNK_SIZE, to - from) + m - 1];
+        for (long start = from; start < to; start += CHUNK_SIZE) {
+            // read the windows starting in this chunk, and nothing behind them
+            int n = (int) Math.min(CHUNK_SIZE, to - start) + m - 1;
+            text.readRange(start, start + n, buffer, 0);
+            for (int i = indexIn(buffer, 0, n); i >= 0; i = indexIn(buffer, i + 1, n)) {
+                if (!action.test(start + i)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first match at or after index i within the first n characters of the buffer, or -1
+     * if there is none
+     */
+    private int indexIn(char[] buffer, int i, int n) {
+        int last = pattern.length - 1;
+        char lastChar = pattern[last];
+        while (i + last < n) {
+            char c = buffer[i + last];
+            if (c == lastChar && matchesAt(buffer, i)) {
+                return i;
+            }
+            i += forwardShift[c & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the last match within the first n characters of the buffer, or -1 if there is none
+     */
+    private int lastIndexIn(char[] buffer, int n) {
+        char firstChar = pattern[0];
+        int i = n - pattern.length;
+        while (i >= 0) {
+            char c = buffer[i];
+            if (c == firstChar && matchesAt(buffer, i)) {
+                return i;
+            }
+            i -= backwardShift[c & 0xFF];
+        }
+        return -1;
+    }
+
+    private boolean matchesAt(char[] buffer, int i) {
+        for (int j = 0; j < pattern.length; j++) {
+            if (buffer[i + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans the windows starting within a range of the text, splitting it into parts that are scanned in parallel.
+     * Tasks are serializable by inheritance only, they are never serialized.
+     */
+    @SuppressWarnings("serial")
+    private abstract class Scan<T> extends RecursiveTask<T> {
+        final Snapshot text;
+        final long from;
+        final long to;
+
+        Scan(Snapshot text, long from, long to) {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return a task scanning a part of the range
+         */
+        abstract Scan<T> part(long from, long to);
+
+        /**
+         * Scans the whole range on the current thread.
+         */
+        abstract T scan();
+
+        abstract T merge(T left, T right);
+
+        @Override
+        protected T compute() {
+            if (to - from <= TASK_SIZE) {
+                return scan();
+            }
+            long middle = from + (to - from) / 2;
+            Scan<T> right = part(middle, to);
+            right.fork();
+            T left = part(from, middle).compute();
+            return merge(left, right.join());
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class FirstMatch extends Scan<Long> {
+        // first match found by any task
+        private final AtomicLong first;
+
+        FirstMatch(Snapshot text, long from, long to, AtomicLong first) {
+            super(text, from, to);
+            this.first = first;
+        }
+
+        @Override
+        Scan<Long> part(long from, long to) {
+            return new FirstMatch(text, from, to, first);
+        }
+
+        @Override
+        Long scan() {
+            long[] match = {-1};
+            for (long start = from; start < to && match[0] < 0; start += CHUNK_SIZE) {
+                if (first.get() < start) {
+                    // another task found an earlier match
+                    break;
+                }
+                forEachMatch(text, start, Math.min(to, start + CHUNK_SIZE), p -> {
+                    match[0] = p;
+                    first.accumulateAndGet(p, Math::min);
+                    return false;
+                });
+            }
+            return match[0];
+        }
+
+        @Override
+        Long merge(Long left, Long right) {
+            return left >= 0 ? left : right;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class MatchCount extends Scan<Long> {
+        MatchCount(Snapshot text, long from, long to) {
+            super(text, from, to);
+        }
+
+        @Override
+        Scan<Long> part(long from, long to) {
+            return new MatchCount(text, from, to);
+        }
+
+        @Override
+        Long scan() {
+            long[] count = {0};
+            forEachMatch(text, from, to, p -> {
+                count[0]++;
+                return true;
+            });
+            return count[0];
+        }
+
+        @Override
+        Long merge(Long left, Long right) {
+            return left + right;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class AllMatches extends Scan<long[]> {
+        AllMatches(Snapshot text, long from, long to) {
+            super(text, from, to);
+        }
+
+        @Override
+        Scan<long[]> part(long from, long to) {
+            return new AllMatches(text, from, to);
+        }
+
+        @Override
+        long[] scan() {
+            LongStream.Builder matches = LongStream.builder();
+            forEachMatch(text, from, to, p -> {
+                matches.add(p);
+                return true;
+            });
+            return matches.build().toArray();
+        }
+
+        @Override
+        long[] merge(long[] left, long[] right) {
+            long[] merged = Arrays.copyOf(left, left.length + right.length);
+            System.arraycopy(right, 0, merged, left.length, right.length);
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package text;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Read-only {@link CharSequence} over a range of a snapshot, e.g. for matching regular expressions against the text
+ * without copying it into a String.
+ * <p>
+ * The sequence keeps the characters around the last accessed index decoded, so sequential access only looks up the
+ * pieces once per {@link #CHUNK_SIZE} characters. The chunk extends in the direction of the access: an index just
+ * before the chunk, as a matcher walking backwards reads it, decodes the characters before the index, any other
+ * index the characters after it. A few characters on the other side are kept as well, for matchers stepping back
+ * a little. {@link #subSequence(int, int)} returns a view of the same snapshot.
+ * <p>
+ * A sequence is not thread-safe, but sequences on the same snapshot can be read from different threads.
+ */
+public final class TextSequence implements CharSequence {
+    private static final int CHUNK_SIZE = 4096;
+    // characters kept behind the accessed index, against the direction of the access, when decoding a new chunk
+    private static final int MARGIN = 64;
+
+    private final Snapshot text;
+    private final long from;
+    private final int length;
+
+    // checked before decoding a chunk, so a long running matcher can be stopped
+    private final BooleanSupplier cancelled;
+
+    // decoded characters, starting at index chunkStart of this sequence
+    private final char[] chunk = new char[CHUNK_SIZE];
+    private int chunkStart;
+    private int chunkLength;
+
+    /**
+     * @param from Start of the range (inclusive)
+     * @param to   End of the range (exclusive), at most 2^31 - 1 characters behind the start
+     */
+    public TextSequence(Snapshot text, long from, long to) {
+        this(text, from, to, () -> false);
+    }
+
+    /**
+     * @param cancelled Returns true if reading should stop with a {@link CancellationException}
+     */
+    TextSequence(Snapshot text, long from, long to, BooleanSupplier cancelled) {
+        if (from < 0 || to < from || to > text.length()) {
+            throw new IndexOutOfBoundsException("range " + from + " to " + to + " of " + text.length());
+        }
+        this.text = text;
+        this.from = from;
+        this.length = Math.toIntExact(to - from);
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return the position of the first character of this sequence in the text
+     */
+    public long start() {
+        return from;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        int i = index - chunkStart;
+        if (i < 0 || i >= chunkLength) {
+            decode(index);
+            i = index - chunkStart;
+        }
+        return chunk[i];
+    }
+
+    /**
+     * Decodes the chunk holding the character at given index.
+     */
+    private void decode(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + length);
+        }
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException();
+        }
+        if (index < chunkStart && index >= chunkStart - CHUNK_SIZE) {
+            // walking backwards
+            chunkStart = Math.max(0, Math.min(index + MARGIN + 1, length) - CHUNK_SIZE);
+        } else {
+            chunkStart = Math.max(0, index - MARGIN);
+        }
+        chunkLength = Math.min(CHUNK_SIZE, length - chunkStart);
+        text.readRange(from + chunkStart, from + chunkStart + chunkLength, chunk, 0);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end < start || end > length) {
+            throw new IndexOutOfBoundsException("range " + start + " to " + end + " of " + length);
+        }
+        return new TextSequence(text, from + start, from + end, cancelled);
+    }
+
+    @Override
+    public String toString() {
+        return text.readRange(from, from + length);
+    }
+}
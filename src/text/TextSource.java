@@ -0,0 +1,33 @@
+package text;
+
+/**
+ * Backing storage of pieces. Offsets are character offsets.
+ */
+interface TextSource {
+    /**
+     * @return the character at given offset of the source
+     */
+    char charAt(long offset);
+
+    /**
+     * Copies characters into an array.
+     *
+     * @param from     Offset of the first character to copy (inclusive)
+     * @param to       Offset of the last character to copy (exclusive)
+     * @param dst      The destination array
+     * @param dstBegin Start offset in the destination array
+     */
+    void getChars(long from, long to, char[] dst, int dstBegin);
+
+    /**
+     * @return the number of line breaks within a range of offsets
+     */
+    long lineBreaks(long from, long to);
+
+    /**
+     * @param from Offset to start searching at
+     * @param n    Number of line breaks to skip
+     * @return the offset of the (n + 1)-th line break at or after an offset, or -1 if there is none
+     */
+    long indexOfLineBreak(long from, long n);
+}
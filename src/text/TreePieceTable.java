@@ -0,0 +1,240 @@
+package text;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Piece table holding the pieces in a persistent {@link PieceTree}. Edits are O(log n) and share all untouched nodes
+ * with the old version.
+ */
+final class TreePieceTable implements PieceTable {
+    // estimated size of a tree node, including its piece
+    private static final int NODE_BYTES = 64;
+
+    final PieceTree.Node<Piece> root;
+
+    private TreePieceTable(PieceTree.Node<Piece> root) {
+        this.root = root;
+    }
+
+    static TreePieceTable of(Piece piece) {
+        return new TreePieceTable(PieceTree.of(piece));
+    }
+
+    private TreePieceTable with(PieceTree.Node<Piece> root) {
+        return root == this.root ? this : new TreePieceTable(root);
+    }
+
+    @Override
+    public long length() {
+        return PieceTree.length(root);
+    }
+
+    @Override
+    public int count() {
+        return PieceTree.count(root);
+    }
+
+    /**
+     * An edit creates about one path from the root to a leaf.
+     */
+    @Override
+    public long editBytes() {
+        return (long) PieceTree.height(root) * NODE_BYTES;
+    }
+
+    @Override
+    public PieceTree.Location<Piece> locate(long position) {
+        return PieceTree.locate(root, position);
+    }
+
+    @Override
+    public PieceTable insert(long position, Piece piece) {
+        PieceTree.Split<Piece> s = PieceTree.split(root, position);
+        return with(PieceTree.coalesce(PieceTree.coalesce(s.left(), PieceTree.of(piece)), s.right()));
+    }
+
+    @Override
+    public PieceTable delete(long from, long to) {
+        PieceTree.Split<Piece> a = PieceTree.split(root, from);
+        PieceTree.Split<Piece> b = PieceTree.split(a.right(), to - from);
+        return with(PieceTree.coalesce(a.left(), b.right()));
+    }
+
+    @Override
+    public PieceTable compact() {
+        return with(PieceTree.build(PieceTree.iterator(root)));
+    }
+
+    @Override
+    public PieceTable build(List<Piece> pieces) {
+        return with(PieceTree.build(pieces.iterator()));
+    }
+
+    @Override
+    public Iterator<Piece> range(long from, long to) {
+        return PieceTree.iterator(PieceTree.range(root, from, to));
+    }
+
+    @Override
+    public Iterator<Piece> iterator() {
+        return PieceTree.iterator(root);
+    }
+
+    @Override
+    public long lineOfPosition(long position, Snapshot text) {
+        long line = 0;
+        PieceTree.Node<Piece> n = root;
+        while (n != null) {
+            long leftLength = PieceTree.length(n.left);
+            if (position < leftLength) {
+                n = n.left;
+                continue;
+            }
+            line += PieceTree.lineBreaks(n.left, text::lineBreaks);
+            Piece p = n.piece;
+            if (position < leftLength + p.length) {
+                return line + text.source(p).lineBreaks(p.offset, p.offset + position - leftLength);
+            }
+            line += text.lineBreaks(p);
+            position -= leftLength + p.length;
+            n = n.right;
+        }
+        return line;
+    }
+
+    @Override
+    public long positionOfLine(long line, Snapshot text) {
+        if (line == 0) {
+            return 0;
+        }
+        long position = 0;
+        PieceTree.Node<Piece> n = root;
+        while (n != null) {
+            long leftLineBreaks = PieceTree.lineBreaks(n.left, text::lineBreaks);
+            if (line <= leftLineBreaks) {
+                n = n.left;
+                continue;
+            }
+            line -= leftLineBreaks;
+            position += PieceTree.length(n.left);
+            Piece p = n.piece;
+            if (line <= text.lineBreaks(p)) {
+                return position + text.source(p).indexOfLineBreak(p.offset, line - 1) - p.offset + 1;
+            }
+            line -= text.lineBreaks(p);
+            position += p.length;
+            n = n.right;
+        }
+        return -1;
+    }
+
+    @Override
+    public long lineBreaks(Snapshot text) {
+        return PieceTree.lineBreaks(root, text::lineBreaks);
+    }
+
+    /**
+     * Keeps the nodes from the root down to the node of the current piece, so moving to a neighbour is O(1)
+     * amortized.
+     */
+    @Override
+    public Walk walk(long position) {
+        if (root == null) {
+            return null;
+        }
+        return new Walk() {
+            @SuppressWarnings("unchecked")
+            private final PieceTree.Node<Piece>[] path =
+                    (PieceTree.Node<Piece>[]) new PieceTree.Node<?>[PieceTree.height(root) + 1];
+            private int depth;
+            private long start;
+
+            {
+                // descend to the piece containing the position, or to the last piece if the position is at the end
+                PieceTree.Node<Piece> n = root;
+                while (n != null) {
+                    path[depth++] = n;
+                    long leftLength = PieceTree.length(n.left);
+                    if (position < start + leftLength) {
+                        n = n.left;
+                    } else if (position < start + leftLength + n.piece.length || n.right == null) {
+                        start += leftLength;
+                        break;
+                    } else {
+                        start += leftLength + n.piece.length;
+                        n = n.right;
+                    }
+                }
+            }
+
+            @Override
+            public Piece piece() {
+                return path[depth - 1].piece;
+            }
+
+            @Override
+            public long start() {
+                return start;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (path[depth - 1].right != null) {
+                    return true;
+                }
+                for (int i = depth - 1; i > 0; i--) {
+                    if (path[i - 1].left == path[i]) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public boolean hasPrevious() {
+                return start > 0;
+            }
+
+            @Override
+            public void next() {
+                start += piece().length;
+                PieceTree.Node<Piece> n = path[depth - 1];
+                if (n.right != null) {
+                    n = n.right;
+                    path[depth++] = n;
+                    while (n.left != null) {
+                        n = n.left;
+                        path[depth++] = n;
+                    }
+                } else {
+                    // go up until we leave a left subtree
+                    while (path[depth - 2].right == path[depth - 1]) {
+                        depth--;
+                    }
+                    depth--;
+                }
+            }
+
+            @Override
+            public void previous() {
+                PieceTree.Node<Piece> n = path[depth - 1];
+                if (n.left != null) {
+                    n = n.left;
+                    path[depth++] = n;
+                    while (n.right != null) {
+                        n = n.right;
+                        path[depth++] = n;
+                    }
+                } else {
+                    // go up until we leave a right subtree
+                    while (path[depth - 2].left == path[depth - 1]) {
+                        depth--;
+                    }
+                    depth--;
+                }
+                start -= piece().length;
+            }
+        };
+    }
+}
@@ -0,0 +1,281 @@
+package text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Index of the byte trigrams of a mapped file, for finding the blocks of the file a string may occur in without
+ * reading the whole file.
+ * <p>
+ * The file is split into blocks of {@link #BLOCK_SIZE} bytes. Every trigram is hashed into one of {@link #BUCKETS}
+ * buckets, and each bucket lists the blocks containing a trigram starting within them. The lists are stored as
+ * variable-length differences of the block numbers. Hash collisions and trigrams that occur in a block, but not
+ * next to each other, only add candidates, so the candidate blocks still have to be searched.
+ * <p>
+ * The index is stored in a file next to the document, which is memory-mapped, so reopening the document does not
+ * read the index into memory. The index file holds the size and modification time of the document and is built
+ * again if they don't match. Building reads the document twice, once to size the lists and once to fill them, on a
+ * background thread. The document is expected to be valid UTF-8, as the string is looked up by its UTF-8 bytes.
+ */
+final class TrigramIndex {
+    private static final int MAGIC = 0x54524931; // "TRI1"
+
+    static final int BLOCK_BITS = 16;
+    static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int BUCKET_BITS = 16;
+    static final int BUCKETS = 1 << BUCKET_BITS;
+
+    // magic, document size, modification time, number of blocks, followed by the offsets of the lists
+    private static final int HEADER_SIZE = Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+    private static final int TABLE_SIZE = (BUCKETS + 1) * Long.BYTES;
+
+    private static final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "trigram-indexer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final MappedByteBuffer buffer;
+    private final int blocks;
+
+    private TrigramIndex(MappedByteBuffer buffer, int blocks) {
+        this.buffer = buffer;
+        this.blocks = blocks;
+    }
+
+    static Path path(File document) {
+        File d = document.getAbsoluteFile();
+        return new File(d.getParentFile(), "." + d.getName() + ".trigrams").toPath();
+    }
+
+    /**
+     * Opens the index of a document on a background thread, building it first if there is none for this version of
+     * the document.
+     *
+     * @return completes with the index, or exceptionally if it could not be built
+     */
+    static CompletableFuture<TrigramIndex> open(File document, MappedFile text) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                TrigramIndex index = read(document, text);
+                if (index == null) {
+                    write(document, text);
+                    index = read(document, text);
+                }
+                if (index == null) {
+                    throw new IOException("trigram index of " + document + " was changed while it was built");
+                }
+                return index;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, indexer);
+    }
+
+    /**
+     * @return the index of a document, or null if there is no index file or it belongs to another version of the
+     * document
+     */
+    static TrigramIndex read(File document, MappedFile text) throws IOException {
+        Path path = path(document);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE + TABLE_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int blocks = blocks(text);
+            if (buffer.getInt(0) != MAGIC || buffer.getLong(4) != text.size()
+                    || buffer.getLong(12) != document.lastModified() || buffer.getInt(20) != blocks
+                    || buffer.getLong(HEADER_SIZE + BUCKETS * Long.BYTES) != channel.size()) {
+                return null;
+            }
+            return new TrigramIndex(buffer, blocks);
+        }
+    }
+
+    /**
+     * Builds the index of a document and writes it to the index file.
+     *
+     * @throws IOException if the index would not fit into a single mapping of 2 GB
+     */
+    static void write(File document, MappedFile text) throws IOException {
+        long modified = document.lastModified();
+        int blocks = blocks(text);
+        byte[] block = new byte[BLOCK_SIZE + 2];
+        BitSet buckets = new BitSet(BUCKETS);
+
+        // size the list of every bucket
+        long[] offsets = new long[BUCKETS + 1];
+        int[] last = new int[BUCKETS];
+        Arrays.fill(last, -1);
+        for (int b = 0; b < blocks; b++) {
+            trigrams(text, b, block, buckets);
+            for (int k = buckets.nextSetBit(0); k >= 0; k = buckets.nextSetBit(k + 1)) {
+                offsets[k + 1] += varIntSize(b - last[k]);
+                last[k] = b;
+            }
+        }
+        offsets[0] = HEADER_SIZE + TABLE_SIZE;
+        for (int k = 0; k < BUCKETS; k++) {
+            offsets[k + 1] += offsets[k];
+        }
+        long size = offsets[BUCKETS];
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("trigram index of " + document + " exceeds 2 GB");
+        }
+
+        Path target = path(document);
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                out.putInt(MAGIC).putLong(text.size()).putLong(modified).putInt(blocks);
+                for (long offset : offsets) {
+                    out.putLong(offset);
+                }
+
+                // fill the lists, every list is written at its own position
+                long[] positions = Arrays.copyOf(offsets, BUCKETS);
+                Arrays.fill(last, -1);
+                for (int b = 0; b < blocks; b++) {
+                    trigrams(text, b, block, buckets);
+                    for (int k = buckets.nextSetBit(0); k >= 0; k = buckets.nextSetBit(k + 1)) {
+                        positions[k] = putVarInt(out, (int) positions[k], b - last[k]);
+                        last[k] = b;
+                    }
+                }
+                out.force();
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static int blocks(MappedFile text) {
+        return (int) ((text.size() + BLOCK_SIZE - 1) >>> BLOCK_BITS);
+    }
+
+    /**
+     * Collects the buckets of the trigrams starting within a block.
+     *
+     * @param block Buffer for the bytes of the block and the two bytes behind it
+     */
+    private static void trigrams(MappedFile text, int b, byte[] block, BitSet buckets) {
+        long start = (long) b << BLOCK_BITS;
+        int n = (int) Math.min(block.length, text.size() - start);
+        text.get(start, block, 0, n);
+        buckets.clear();
+        int trigram = 0;
+        for (int i = 0; i < n; i++) {
+            trigram = (trigram << 8 | block[i] & 0xFF) & 0xFFFFFF;
+            if (i >= 2) {
+                buckets.set(bucket(trigram));
+            }
+        }
+    }
+
+    private static int bucket(int trigram) {
+        return (trigram * 0x9E3779B1) >>> (Integer.SIZE - BUCKET_BITS);
+    }
+
+    /**
+     * @param pattern The string to search for
+     * @return the blocks a match of a string may start in, or null if the string is too short to be looked up
+     */
+    BitSet candidates(char[] pattern) {
+        for (char c : pattern) {
+            // the bytes of the document decode to neither, so the bytes of the string are not the ones to look for
+            if (Character.isSurrogate(c) || c == '\uFFFD') {
+                return null;
+            }
+        }
+        byte[] bytes = new String(pattern).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 3) {
+            return null;
+        }
+        BitSet candidates = new BitSet(blocks);
+        candidates.set(0, blocks);
+        // the trigrams of a match starting in a block start in this block or the next one, as long as they start
+        // less than a block behind the start of the match
+        int trigram = (bytes[0] & 0xFF) << 8 | bytes[1] & 0xFF;
+        for (int i = 2; i < Math.min(bytes.length, BLOCK_SIZE + 1) && !candidates.isEmpty(); i++) {
+            trigram = (trigram << 8 | bytes[i] & 0xFF) & 0xFFFFFF;
+            BitSet containing = blocks(bucket(trigram));
+            containing.or(containing.get(1, blocks + 1));
+            candidates.and(containing);
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the blocks containing a trigram of a bucket
+     */
+    private BitSet blocks(int bucket) {
+        BitSet blocks = new BitSet(this.blocks);
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) buffer.getLong(HEADER_SIZE + bucket * Long.BYTES));
+        int end = (int) buffer.getLong(HEADER_SIZE + (bucket + 1) * Long.BYTES);
+        try {
+            for (int b = -1; in.position() < end; ) {
+                b += readVarInt(in);
+                blocks.set(b);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            // the file is damaged, so every block may hold a match
+            blocks.set(0, this.blocks);
+        }
+        return blocks;
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return the position behind the written value
+     */
+    private static int putVarInt(ByteBuffer out, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put(position++, (byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.put(position++, (byte) value);
+        return position;
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
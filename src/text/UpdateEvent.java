@@ -1,9 +1,65 @@
 package text;
 
-public sealed interface UpdateEvent permits UpdateEvent.Insert, UpdateEvent.Delete {
-    record Insert(int position, String text) implements UpdateEvent {
+import javafx.scene.paint.Paint;
+import javafx.scene.text.Font;
+
+import java.util.List;
+
+public sealed interface UpdateEvent permits UpdateEvent.Insert, UpdateEvent.Delete, UpdateEvent.Style,
+        UpdateEvent.Undo, UpdateEvent.Redo, UpdateEvent.Batch, UpdateEvent.Load {
+    /**
+     * Text was inserted. The text itself can be read from the piece list.
+     */
+    record Insert(long position, int length) implements UpdateEvent {
+    }
+
+    record Delete(long from, long to) implements UpdateEvent {
+    }
+
+    /**
+     * A style change. A null font or color was left unchanged.
+     */
+    record Style(long from, long to, Font font, Paint color) implements UpdateEvent {
+    }
+
+    /**
+     * The last edit was undone, the text may have changed anywhere.
+     *
+     * @param position Position of the undone edit
+     */
+    record Undo(long position) implements UpdateEvent {
+    }
+
+    /**
+     * The last undone edit was redone, the text may have changed anywhere.
+     *
+     * @param position Position of the redone edit
+     */
+    record Redo(long position) implements UpdateEvent {
+    }
+
+    /**
+     * The edits of a batch, see {@link PieceList#beginBatch()}.
+     *
+     * @param changes Sorted, non-overlapping changes, given in positions of the text after the batch
+     */
+    record Batch(List<Change> changes) implements UpdateEvent {
+    }
+
+    /**
+     * The rest of a document in large-file mode was loaded behind the text, see {@link PieceList#finishLoading()}.
+     * This is no edit, it is neither recorded in the history nor in the journal.
+     */
+    record Load(long from, long to) implements UpdateEvent {
     }
 
-    record Delete(int from, int to) implements UpdateEvent {
+    /**
+     * A section of the text that was replaced. Style changes count as replacing the styled text.
+     *
+     * @param from     Start of the section
+     * @param removed  Number of characters that were replaced
+     * @param inserted Number of characters that replaced them
+     */
+    record Change(long from, long removed, long inserted) {
     }
 }
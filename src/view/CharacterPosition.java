@@ -9,7 +9,7 @@ public class CharacterPosition {
     /**
      * Absolute position of the character in the whole text.
      */
-    final int textPosition;
+    final long textPosition;
 
     /**
      * Absolute position of the character in the line.
@@ -26,7 +26,7 @@ public class CharacterPosition {
      */
     final Line line;
 
-    public CharacterPosition(StyledCharacter sc, int textPosition, int lineIndex, BoundingBox box, Line line) {
+    public CharacterPosition(StyledCharacter sc, long textPosition, int lineIndex, BoundingBox box, Line line) {
         this.sc = sc;
         this.textPosition = textPosition;
         this.lineIndex = lineIndex;
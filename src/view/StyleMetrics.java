@@ -0,0 +1,54 @@
+package view;
+
+import com.sun.javafx.tk.FontMetrics;
+import com.sun.javafx.tk.Toolkit;
+import text.StyleTable;
+
+import java.util.Arrays;
+
+/**
+ * Font metrics and character widths of the styles in the {@link StyleTable}, looked up once per style instead of
+ * once per laid out character. Only used on the JavaFX application thread.
+ */
+final class StyleMetrics {
+    // widths of the first 256 characters are kept per style, others are asked from the font metrics
+    private static final int CACHED_CHARS = 256;
+
+    private static FontMetrics[] metrics = new FontMetrics[16];
+    private static float[][] widths = new float[16][];
+
+    private StyleMetrics() {
+    }
+
+    static FontMetrics metrics(int style) {
+        if (style >= metrics.length) {
+            int capacity = Math.max(style + 1, metrics.length * 2);
+            metrics = Arrays.copyOf(metrics, capacity);
+            widths = Arrays.copyOf(widths, capacity);
+        }
+        FontMetrics fm = metrics[style];
+        if (fm == null) {
+            fm = Toolkit.getToolkit().getFontLoader().getFontMetrics(StyleTable.font(style));
+            metrics[style] = fm;
+            float[] w = new float[CACHED_CHARS];
+            for (int c = 0; c < CACHED_CHARS; c++) {
+                w[c] = fm.getCharWidth((char) c);
+            }
+            widths[style] = w;
+        }
+        return fm;
+    }
+
+    static double charWidth(int style, char c) {
+        FontMetrics fm = metrics(style);
+        return c < CACHED_CHARS ? widths[style][c] : Util.charWidth(fm, c);
+    }
+
+    static double lineHeight(int style) {
+        return metrics(style).getLineHeight();
+    }
+
+    static double ascent(int style) {
+        return metrics(style).getAscent();
+    }
+}
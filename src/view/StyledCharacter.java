@@ -1,34 +1,45 @@
 package view;
 
-import com.sun.javafx.tk.FontMetrics;
-import com.sun.javafx.tk.Toolkit;
 import javafx.scene.paint.Paint;
 import javafx.scene.text.Font;
+import text.StyleTable;
 
 public class StyledCharacter {
     final char character;
-    final Font font;
-    final Paint color;
-    final FontMetrics fm;
 
-    public StyledCharacter(char character, Font font, Paint color) {
+    /**
+     * Id of the style in the {@link StyleTable}.
+     */
+    final int style;
+
+    public StyledCharacter(char character, int style) {
         this.character = character;
-        this.font = font;
-        this.color = color;
-        this.fm = Toolkit.getToolkit().getFontLoader().getFontMetrics(font);
+        this.style = style;
+    }
+
+    public Font getFont() {
+        return StyleTable.font(style);
+    }
+
+    public Paint getColor() {
+        return StyleTable.color(style);
     }
 
     public double getCharacterWidth() {
-        return Util.charWidth(fm, character);
+        return StyleMetrics.charWidth(style, character);
     }
 
     public double getLineHeight() {
-        return fm.getLineHeight();
+        return StyleMetrics.lineHeight(style);
+    }
+
+    public double getAscent() {
+        return StyleMetrics.ascent(style);
     }
 
     public static class Default extends StyledCharacter {
         public Default() {
-            super(' ', javafx.scene.text.Font.font("Arial", 32), Paint.valueOf("000000"));
+            super(' ', StyleTable.DEFAULT);
         }
     }
 }
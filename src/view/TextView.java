@@ -1,6 +1,8 @@
 package view;
 
 import clipboard.Clipboard;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.input.KeyCode;
@@ -8,22 +10,31 @@ import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Paint;
 import javafx.scene.text.Font;
-import text.Piece;
+import javafx.util.Duration;
+import text.Journal;
+import text.MatchIndex;
+import text.PieceCursor;
 import text.PieceList;
+import text.RegexSearch;
+import text.Snapshot;
 import text.UpdateEvent;
 import text.UpdateEvent.*;
 import text.UpdateEventListener;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class TextView extends Canvas implements UpdateEventListener {
     private static final int MARGIN = 5;
     private static final int SCROLL_LINES = 3;
+    private static final Duration COMPACTION_DELAY = Duration.seconds(2);
+    // documents of at least this many bytes get a trigram index, so searching them does not read the whole file
+    private static final long TRIGRAM_INDEX_SIZE = 256L << 20;
 
     private final PieceList text;
     private final GraphicsContext g;
@@ -32,12 +43,29 @@ public class TextView extends Canvas implements UpdateEventListener {
     private Line firstLine;
 
     // the two positions specify the section of the text that is visible in the editor
-    private int firstTextPosition;
-    private int lastTextPosition;
+    private long firstTextPosition;
+    private long lastTextPosition;
 
     private final Cursor cursor;
     private Selection selection;
 
+    // all occurrences of the last search, or null if there was none
+    private MatchIndex matches;
+    private String searchedWord;
+
+    // running regular expression search, or null if there is none
+    private RegexSearch regexSearch;
+    // matches of the last regular expression search, and the expression and version of the text they belong to
+    private List<RegexSearch.Match> regexMatches;
+    private String searchedRegex;
+    private Snapshot regexSnapshot;
+
+    // compacts the piece list once the text was not edited for a while
+    private final PauseTransition idleCompaction;
+
+    // records the edits that were not saved yet
+    private final Journal journal;
+
     public TextView(File file, double width, double height) throws IOException {
         super(width, height);
 
@@ -45,8 +73,15 @@ public class TextView extends Canvas implements UpdateEventListener {
         heightProperty().addListener(e -> refillFromPosAndDraw(firstTextPosition));
 
         this.g = getGraphicsContext2D();
-        this.text = createPieceList(file);
+        this.text = PieceList.open(file);
+        if (file.length() >= TRIGRAM_INDEX_SIZE) {
+            this.text.indexTrigrams();
+        }
+        this.journal = Journal.open(file, text);
         this.text.addUpdateEventListener(this);
+        // the rest of a large document is loaded once its file is indexed
+        PieceList loading = this.text;
+        loading.loaded().thenRun(() -> Platform.runLater(loading::finishLoading));
         this.firstTextPosition = 0;
         this.lastTextPosition = 0;
         this.firstLine = fill(MARGIN, getHeight() - MARGIN, 0);
@@ -54,31 +89,9 @@ public class TextView extends Canvas implements UpdateEventListener {
         this.cursor = new Cursor(CursorStyle.Line, firstLine.positions.getFirst());
         this.selection = new Selection(firstLine.positions.getFirst(), firstLine.positions.getFirst(), List.of(firstLine));
         this.selection.setEnabled(false);
-    }
-
-    private PieceList createPieceList(File file) throws IOException {
-        BufferedReader br = new BufferedReader(new FileReader(file));
-        String styleMetadata = br.readLine();
-
-        // no metadata
-        if (!styleMetadata.endsWith("|")) {
-            return new PieceList(new Piece(file, 0, (int) file.length()));
-        }
 
-        int offset = styleMetadata.length() + 1;
-        PieceList pl = new PieceList(new Piece(file, offset, (int) (file.length() - offset)));
-
-        String[] styles = styleMetadata.split("\\|");
-        for (String s : styles) {
-            String[] csv = s.split(",");
-            int start = Integer.parseInt(csv[0]);
-            int end = start + Integer.parseInt(csv[1]);
-            Font font = new Font(csv[2], Double.parseDouble(csv[3]));
-            Paint color = Paint.valueOf(csv[4]);
-            pl.setStyle(start, end, font, color);
-        }
-
-        return pl;
+        this.idleCompaction = new PauseTransition(COMPACTION_DELAY);
+        this.idleCompaction.setOnFinished(e -> text.compact());
     }
 
     /**
@@ -88,14 +101,15 @@ public class TextView extends Canvas implements UpdateEventListener {
      * @param to                y value of end point
      * @param startTextPosition text position to start with
      */
-    private Line fill(double from, double to, int startTextPosition) {
+    private Line fill(double from, double to, long startTextPosition) {
         double y = from;
-        int position = startTextPosition;
+        long position = startTextPosition;
         lastTextPosition = startTextPosition;
 
         Line line = new Line();
         Line first = line;
         int lineNumber = 0;
+        PieceCursor cursor = text.cursor(startTextPosition);
 
         // fill the vertical space
         while (true) {
@@ -105,7 +119,7 @@ public class TextView extends Canvas implements UpdateEventListener {
             double maxCharacterHeight = 0.0;
             StyledCharacter biggestCharacter = null;
 
-            StyledCharacter sc = text.readStyledCharAt(position);
+            StyledCharacter sc = nextStyledCharacter(cursor);
 
             position++;
             while (sc != null && sc.character != '\n') {
@@ -118,7 +132,7 @@ public class TextView extends Canvas implements UpdateEventListener {
                     biggestCharacter = sc;
                 }
                 lineText.append(sc.character);
-                sc = text.readStyledCharAt(position);
+                sc = nextStyledCharacter(cursor);
                 position++;
             }
 
@@ -140,7 +154,7 @@ public class TextView extends Canvas implements UpdateEventListener {
             }
             final double lineHeight = biggestCharacter.getLineHeight();
             line.box = new BoundingBox(MARGIN, y, xOffset - MARGIN, lineHeight);
-            line.baseline = y + biggestCharacter.fm.getAscent();
+            line.baseline = y + biggestCharacter.getAscent();
             // fixup the height for all characters, to match the largest character in this line
             line.positions.forEach(p -> p.box.height = lineHeight);
 
@@ -170,15 +184,30 @@ public class TextView extends Canvas implements UpdateEventListener {
         return first;
     }
 
+    private static StyledCharacter nextStyledCharacter(PieceCursor cursor) {
+        if (!cursor.hasNext()) {
+            return null;
+        }
+        char character = cursor.next();
+        return new StyledCharacter(character, cursor.style());
+    }
+
     private void draw() {
         // cover background
         g.setFill(Paint.valueOf("f2f2f2"));
         g.fillRect(0, 0, getWidth(), getHeight());
+        if (matches != null) {
+            drawMatches();
+        }
 
+        int style = -1;
         for (Line l : firstLine) {
             for (CharacterPosition p : l.positions) {
-                g.setFont(p.sc.font);
-                g.setFill(p.sc.color);
+                if (p.sc.style != style) {
+                    style = p.sc.style;
+                    g.setFont(p.sc.getFont());
+                    g.setFill(p.sc.getColor());
+                }
                 g.fillText(String.valueOf(p.sc.character), p.box.x, l.baseline);
             }
         }
@@ -188,6 +217,26 @@ public class TextView extends Canvas implements UpdateEventListener {
         //drawDebug();
     }
 
+    /**
+     * Highlights the visible occurrences of the last search.
+     */
+    private void drawMatches() {
+        int length = matches.length();
+        long[] visible = matches.matches(firstTextPosition - length + 1, lastTextPosition + 1);
+        g.setFill(Paint.valueOf("ffe680"));
+        int i = 0;
+        for (Line l : firstLine) {
+            for (CharacterPosition p : l.positions) {
+                while (i < visible.length && visible[i] + length <= p.textPosition) {
+                    i++;
+                }
+                if (i < visible.length && visible[i] <= p.textPosition) {
+                    g.fillRect(p.box.x, p.box.y, p.box.width, p.box.height);
+                }
+            }
+        }
+    }
+
     private void drawDebug() {
         g.setStroke(Paint.valueOf("ff0000"));
         // view bounds
@@ -208,15 +257,19 @@ public class TextView extends Canvas implements UpdateEventListener {
         }
     }
 
-    private void refillFromPosAndDraw(int pos) {
+    private void refillFromPosAndDraw(long pos) {
+        refillFromPos(pos);
+        draw();
+    }
+
+    private void refillFromPos(long pos) {
         firstTextPosition = pos;
         firstLine = fill(MARGIN, getHeight() - MARGIN, pos);
-        int cursorPos = cursor.position.textPosition;
+        long cursorPos = cursor.position.textPosition;
         cursor.setEnabled(firstTextPosition <= cursorPos && cursorPos <= lastTextPosition);
-        draw();
     }
 
-    private Line refillFromLineAndDraw(Line line) {
+    private Line refillFromLine(Line line) {
         Line prev = line.prev;
         line = fill(line.box.y, getHeight() - MARGIN, line.positions.getFirst().textPosition);
         if (prev == null) {
@@ -225,32 +278,56 @@ public class TextView extends Canvas implements UpdateEventListener {
             prev.next = line;
             line.prev = prev;
         }
-        int cursorPos = cursor.position.textPosition;
+        long cursorPos = cursor.position.textPosition;
         cursor.setEnabled(firstTextPosition <= cursorPos && cursorPos <= lastTextPosition);
-        draw();
         return line;
     }
 
-    public void scroll(int pos) {
-        while (text.readCharAt(pos) != '\n' && pos > 0) {
-            pos--;
+    public void scroll(long pos) {
+        // scroll to the start of the line following the last line break at or before pos
+        refillFromPosAndDraw(text.positionOfLine(text.lineOfPosition(pos + 1)));
+    }
+
+    /**
+     * @param line The line to scroll to, starting at 0
+     * @return true if the line exists
+     */
+    public boolean scrollToLine(long line) {
+        long pos = text.positionOfLine(line);
+        if (pos < 0) {
+            return false;
         }
-        if (pos > 0) pos++;
         refillFromPosAndDraw(pos);
+        return true;
     }
 
     public int getNextScrollAmount() {
         return firstLine.toStream().limit(SCROLL_LINES).mapToInt(l -> l.textLength).sum();
     }
 
-    public int getTextLength() {
-        return text.getTotalLength();
+    public long getTextLength() {
+        return text.length();
+    }
+
+    /**
+     * @return an immutable view of the current text, which can be read from any thread. A large document is loaded
+     * completely first.
+     */
+    public Snapshot getSnapshot() {
+        text.finishLoading();
+        return text.snapshot();
     }
 
     public void handleKey(KeyEvent e) {
         switch (e.getCode()) {
             case BACK_SPACE -> handleDeleteKey(e);
-            case UP, DOWN, LEFT, RIGHT -> handleCursorKey(e);
+            case UP, DOWN, LEFT, RIGHT -> {
+                handleCursorKey(e);
+                selection.setEnabled(false);
+                cursor.setEnabled(true);
+                // moving the cursor changes no text, so no update draws it
+                draw();
+            }
             default -> {
                 if (e.getText().isEmpty()) break;
 
@@ -259,21 +336,30 @@ public class TextView extends Canvas implements UpdateEventListener {
                     t = t.toUpperCase();
                 }
 
+                selection.setEnabled(false);
+                cursor.setEnabled(true);
                 text.insert(cursor.position.textPosition, t.charAt(0));
             }
         }
-        selection.setEnabled(false);
-        cursor.setEnabled(true);
-        draw();
     }
 
     private void handleDeleteKey(KeyEvent e) {
         if (e.getCode() == KeyCode.BACK_SPACE) {
+            long from;
+            long to;
             if (cursor.isEnabled()) {
-                text.delete(cursor.position.textPosition - 1, cursor.position.textPosition);
+                from = cursor.position.textPosition - 1;
+                to = cursor.position.textPosition;
             } else if (selection.isEnabled()) {
-                text.delete(selection.start.textPosition, selection.end.textPosition + 1);
+                from = selection.start.textPosition;
+                to = selection.end.textPosition + 1;
+            } else {
+                return;
             }
+            // the update draws the view, so it must already see the selection removed
+            selection.setEnabled(false);
+            cursor.setEnabled(true);
+            text.delete(from, to);
         }
     }
 
@@ -291,7 +377,7 @@ public class TextView extends Canvas implements UpdateEventListener {
                 }
             }
             case DOWN -> {
-                if (cursor.position.line.next == null && lastTextPosition < text.getTotalLength() - 1) {
+                if (cursor.position.line.next == null && lastTextPosition < text.length() - 1) {
                     scroll(firstLine.next.positions.getFirst().textPosition);
                     Line l = firstLine.tail();
                     cursor.position = cursor.position.lineIndex < l.textLength
@@ -314,7 +400,7 @@ public class TextView extends Canvas implements UpdateEventListener {
             case RIGHT -> {
                 if (selection.isEnabled()) {
                     cursor.position = selection.end.line.positions.get(selection.end.lineIndex + 1);
-                } else if (cursor.position.textPosition == lastTextPosition && lastTextPosition < text.getTotalLength() - 1) {
+                } else if (cursor.position.textPosition == lastTextPosition && lastTextPosition < text.length() - 1) {
                     scroll(firstLine.next.positions.getFirst().textPosition);
                     cursor.position = firstLine.tail().positions.getFirst();
                 } else {
@@ -367,19 +453,54 @@ public class TextView extends Canvas implements UpdateEventListener {
 
     @Override
     public void update(UpdateEvent e) {
+        // the matches are drawn with the text
+        if (matches != null) {
+            matches.update(e);
+        }
+        if (!(e instanceof Style)) {
+            cancelRegexSearch();
+        }
         switch (e) {
-            case Insert(int pos, String t) -> {
-                Line l = refillFromLineAndDraw(lineFromTextPosition(Math.max(pos - 1, 0)));
-                cursor.position = l.positions.get(cursor.position.lineIndex + t.length());
+            case Insert(long pos, int length) -> {
+                Line l = refillFromLine(lineFromTextPosition(Math.max(pos - 1, 0)));
+                cursor.position = l.positions.get(cursor.position.lineIndex + length);
             }
-            case Delete(int from, int to) -> {
-                refillFromLineAndDraw(lineFromTextPosition(from));
+            case Delete(long from, long to) -> {
+                refillFromLine(lineFromTextPosition(from));
                 cursor.position = characterPositionFromTextPosition(from);
             }
+            case Style s -> {
+                refillFromPos(firstTextPosition);
+                updateSelection();
+            }
+            case Batch(List<Change> changes) -> {
+                refillFromLine(lineFromTextPosition(Math.max(changes.getFirst().from() - 1, 0)));
+                Change last = changes.getLast();
+                cursor.position = characterPositionFromTextPosition(last.from() + last.inserted());
+            }
+            case Undo(long pos) -> showEdit(pos);
+            case Redo(long pos) -> showEdit(pos);
+            case Load l -> refillFromPos(firstTextPosition);
         }
+        idleCompaction.playFromStart();
+        // the branches only lay out the lines, so the cursor and the selection are drawn where they ended up
         draw();
     }
 
+    /**
+     * Lays out the text after it was replaced by another version, scrolling to the edit if it is not visible.
+     */
+    private void showEdit(long pos) {
+        if (pos < firstTextPosition || pos > lastTextPosition || firstTextPosition > text.length()) {
+            refillFromPos(text.positionOfLine(text.lineOfPosition(pos)));
+        } else {
+            refillFromPos(firstTextPosition);
+        }
+        selection.setEnabled(false);
+        cursor.position = characterPositionFromTextPosition(pos);
+        cursor.setEnabled(true);
+    }
+
     private void updateSelection() {
         CharacterPosition start = characterPositionFromTextPosition(selection.start.textPosition);
         CharacterPosition end = characterPositionFromTextPosition(selection.end.textPosition);
@@ -399,7 +520,7 @@ public class TextView extends Canvas implements UpdateEventListener {
         return null;
     }
 
-    private CharacterPosition characterPositionFromTextPosition(int pos) {
+    private CharacterPosition characterPositionFromTextPosition(long pos) {
         for (Line l : firstLine) {
             for (CharacterPosition p : l.positions) {
                 if (p.textPosition == pos) {
@@ -410,7 +531,7 @@ public class TextView extends Canvas implements UpdateEventListener {
         return firstLine.positions.getFirst();
     }
 
-    private Line lineFromTextPosition(int pos) {
+    private Line lineFromTextPosition(long pos) {
         for (Line l : firstLine) {
             for (CharacterPosition p : l.positions) {
                 if (p.textPosition == pos) {
@@ -433,60 +554,249 @@ public class TextView extends Canvas implements UpdateEventListener {
 
     public void handleClipboardCopy() {
         if (selection.isEnabled()) {
-            Clipboard.getInstance().setContent(selection.getSelectedText());
+            Clipboard.getInstance().setContent(selectedText());
         }
     }
 
     public void handleClipboardCut() {
         if (selection.isEnabled()) {
-            Clipboard.getInstance().setContent(selection.getSelectedText());
+            Clipboard.getInstance().setContent(selectedText());
             selection.setEnabled(false);
             cursor.setEnabled(true);
             text.delete(selection.start.textPosition, selection.end.textPosition + 1);
         }
     }
 
+    private String selectedText() {
+        return text.readRange(selection.start.textPosition, selection.end.textPosition + 1);
+    }
+
     public void handleClipboardPaste() {
         if (cursor.isEnabled()) {
             text.insert(cursor.position.textPosition, Clipboard.getInstance().getContent());
         }
     }
 
+    public void handleUndo() {
+        text.undo();
+    }
+
+    public void handleRedo() {
+        text.redo();
+    }
+
     public void handleSave() throws IOException {
         text.save();
+        journal.reset();
+    }
+
+    /**
+     * Writes the unsaved edits to the journal and releases the memory of the document. The view can't be used
+     * afterwards.
+     */
+    public void close() throws IOException {
+        cancelRegexSearch();
+        idleCompaction.stop();
+        journal.close();
+        text.close();
     }
 
     public void handleSetFont(Font font) {
         if (selection.isEnabled()) {
             text.setStyle(selection.start.textPosition, selection.end.textPosition + 1, font, null);
-            refillFromPosAndDraw(firstTextPosition);
-            updateSelection();
-            draw();
         }
     }
 
     public void handleSetColor(Paint color) {
         if (selection.isEnabled()) {
             text.setStyle(selection.start.textPosition, selection.end.textPosition + 1, null, color);
-            refillFromPosAndDraw(firstTextPosition);
-            updateSelection();
-            draw();
         }
     }
 
+    /**
+     * Selects the next occurrence of a string behind the selection or the cursor, continuing at the start of the
+     * text if there is none, and scrolls to it. All occurrences are highlighted until the next search.
+     *
+     * @return false if the text does not contain the string
+     */
     public boolean handleSearch(String searchWord) {
-        for (Line l : firstLine) {
-            int startIndex = l.text.indexOf(searchWord);
-            if (startIndex != -1) {
-                CharacterPosition start = l.positions.get(startIndex);
-                CharacterPosition end = l.positions.get(startIndex + searchWord.length() - 1);
-                selection = new Selection(start, end, List.of());
-                selection.setEnabled(true);
-                cursor.setEnabled(false);
-                draw();
-                return true;
+        if (!search(searchWord)) {
+            return false;
+        }
+        long from = selection.isEnabled() ? selection.start.textPosition + 1 : cursor.position.textPosition;
+        long match = matches.next(from);
+        if (match < 0) {
+            match = matches.next(0);
+        }
+        return selectMatch(match, searchWord.length());
+    }
+
+    /**
+     * Selects the previous occurrence of a string before the selection or the cursor, continuing at the end of the
+     * text if there is none, and scrolls to it. All occurrences are highlighted until the next search.
+     *
+     * @return false if the text does not contain the string
+     */
+    public boolean handleSearchPrevious(String searchWord) {
+        if (!search(searchWord)) {
+            return false;
+        }
+        long before = selection.isEnabled() ? selection.start.textPosition : cursor.position.textPosition;
+        long match = matches.previous(before);
+        if (match < 0) {
+            match = matches.previous(text.length());
+        }
+        return selectMatch(match, searchWord.length());
+    }
+
+    /**
+     * Replaces all occurrences of a string at once. Overlapping occurrences are replaced from left to right.
+     *
+     * @return the number of replaced occurrences
+     */
+    public int handleReplaceAll(String searchWord, String replacement) {
+        if (!search(searchWord)) {
+            return 0;
+        }
+        return text.replaceAll(matches.matches(0, text.length()), searchWord.length(), replacement);
+    }
+
+    /**
+     * Finds all occurrences of a string, unless they are already known.
+     *
+     * @return false if the string is empty
+     */
+    private boolean search(String searchWord) {
+        if (searchWord.isEmpty()) {
+            matches = null;
+            searchedWord = null;
+            draw();
+            return false;
+        }
+        if (!searchWord.equals(searchedWord)) {
+            text.finishLoading();
+            matches = new MatchIndex(text, searchWord);
+            searchedWord = searchWord;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of occurrences of the last search
+     */
+    public int getMatchCount() {
+        return matches == null ? 0 : matches.count();
+    }
+
+    /**
+     * Selects the next or previous match of a regular expression, like {@link #handleSearch(String)}. The text is
+     * searched on a background thread, which is cancelled if the text is edited before it finishes.
+     *
+     * @param done Called with the number of matches once they are known, or with -1 if the expression is invalid
+     */
+    public void handleRegexSearch(String regex, boolean forward, IntConsumer done) {
+        cancelRegexSearch();
+        matches = null;
+        searchedWord = null;
+        text.finishLoading();
+        Snapshot snapshot = text.snapshot();
+        if (regex.equals(searchedRegex) && snapshot == regexSnapshot) {
+            done.accept(selectRegexMatch(forward));
+            return;
+        }
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex, Pattern.MULTILINE);
+        } catch (PatternSyntaxException e) {
+            done.accept(-1);
+            return;
+        }
+        RegexSearch search = new RegexSearch(pattern);
+        regexSearch = search;
+        search.start(snapshot, found -> Platform.runLater(() -> {
+            // the search may have been cancelled after it delivered its result
+            if (regexSearch != search) {
+                return;
+            }
+            regexSearch = null;
+            regexMatches = found;
+            searchedRegex = regex;
+            regexSnapshot = snapshot;
+            done.accept(selectRegexMatch(forward));
+        }));
+    }
+
+    /**
+     * Selects a match found by a search over a snapshot of the text and scrolls to it. The match is not selected if
+     * the text has become too short since.
+     *
+     * @return false if the match is not within the text
+     */
+    public boolean handleSelectMatch(long pos, long length) {
+        return pos + length <= text.length() && selectMatch(pos, length);
+    }
+
+    private void cancelRegexSearch() {
+        if (regexSearch != null) {
+            regexSearch.cancel();
+            regexSearch = null;
+        }
+    }
+
+    /**
+     * Selects the first non-empty match of the last regular expression search behind the selection or the cursor, or
+     * the last one before it.
+     *
+     * @return the number of matches
+     */
+    private int selectRegexMatch(boolean forward) {
+        RegexSearch.Match match = null;
+        RegexSearch.Match wrapped = null;
+        if (forward) {
+            long from = selection.isEnabled() ? selection.start.textPosition + 1 : cursor.position.textPosition;
+            for (RegexSearch.Match m : regexMatches) {
+                if (m.end() > m.start()) {
+                    wrapped = wrapped == null ? m : wrapped;
+                    if (m.start() >= from) {
+                        match = m;
+                        break;
+                    }
+                }
             }
+        } else {
+            long before = selection.isEnabled() ? selection.start.textPosition : cursor.position.textPosition;
+            for (RegexSearch.Match m : regexMatches.reversed()) {
+                if (m.end() > m.start()) {
+                    wrapped = wrapped == null ? m : wrapped;
+                    if (m.start() < before) {
+                        match = m;
+                        break;
+                    }
+                }
+            }
+        }
+        match = match != null ? match : wrapped;
+        if (match != null) {
+            selectMatch(match.start(), match.end() - match.start());
         }
-        return false;
+        return regexMatches.size();
+    }
+
+    private boolean selectMatch(long pos, long length) {
+        if (pos < 0) {
+            return false;
+        }
+        if (pos < firstTextPosition || pos + length - 1 > lastTextPosition) {
+            scrollToLine(text.lineOfPosition(pos));
+        }
+        // a match longer than the visible text is selected up to the end of the screen
+        CharacterPosition start = characterPositionFromTextPosition(pos);
+        CharacterPosition end = characterPositionFromTextPosition(Math.min(pos + length - 1, lastTextPosition));
+        selection = new Selection(start, end, linesBetweenPositions(start, end));
+        selection.setEnabled(true);
+        cursor.setEnabled(false);
+        cursor.position = start;
+        draw();
+        return true;
     }
 }
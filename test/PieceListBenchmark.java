@@ -0,0 +1,134 @@
+import org.junit.jupiter.api.Test;
+import text.Piece;
+import text.PieceCursor;
+import text.PieceList;
+import text.TextSearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Prints the average cost of an edit while the number of pieces grows. With the balanced piece tree the cost per
+ * edit should stay roughly flat.
+ * <p>
+ * Also compares reading with both backends of a piece list for documents with few pieces, where the arrays
+ * backend should be faster, the cost of replacing many matches at once, and searching a rare string with and
+ * without a trigram index.
+ */
+public class PieceListBenchmark {
+    private static final int ROUNDS = 8;
+    private static final int EDITS_PER_ROUND = 25_000;
+    private static final int READS = 200_000;
+    private static final int SCANS = 200;
+    private static final int INDEXED_WORDS = 20_000_000;
+
+    @Test
+    public void editCostByPieceCount() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+
+        Random random = new Random(1);
+        for (int round = 1; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < EDITS_PER_ROUND; i++) {
+                // inserting at a random position splits a piece and adds a new one
+                int position = random.nextInt(pl.getTotalLength() + 1);
+                pl.insert(position, 'x');
+                pl.readCharAt(random.nextInt(pl.getTotalLength()));
+            }
+            long nanosPerEdit = (System.nanoTime() - start) / EDITS_PER_ROUND;
+            int pieces = 0;
+            for (Piece ignored : pl) {
+                pieces++;
+            }
+            System.out.printf("%8d pieces: %6d ns per edit%n", pieces, nanosPerEdit);
+        }
+    }
+
+    @Test
+    public void readCostByBackend() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        for (int pieces : new int[]{10, 100, 1_000}) {
+            for (PieceList.Backend backend : PieceList.Backend.values()) {
+                PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()), backend);
+                Random random = new Random(1);
+                while (pl.getPieceCount() < pieces) {
+                    pl.insert(random.nextInt(pl.getTotalLength() + 1), 'x');
+                }
+
+                long start = System.nanoTime();
+                for (int i = 0; i < READS; i++) {
+                    pl.readCharAt(random.nextInt(pl.getTotalLength()));
+                }
+                long nanosPerRead = (System.nanoTime() - start) / READS;
+
+                start = System.nanoTime();
+                for (int i = 0; i < SCANS; i++) {
+                    PieceCursor cursor = pl.cursor(0);
+                    while (cursor.hasNext()) {
+                        cursor.next();
+                    }
+                }
+                long nanosPerChar = (System.nanoTime() - start) / ((long) SCANS * pl.getTotalLength());
+                System.out.printf("%8d pieces, %-6s: %6d ns per random read, %6d ns per character scanned%n",
+                        pieces, backend, nanosPerRead, nanosPerChar);
+            }
+        }
+    }
+
+    @Test
+    public void replaceAllCost() throws IOException {
+        File file = File.createTempFile("replace", ".txt");
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), "Lorem ipsum dolor sit amet, consectetur adipiscing elit.\n".repeat(100_000));
+        PieceList pl = new PieceList(new Piece(file, 0, (int) file.length()));
+
+        long start = System.nanoTime();
+        long[] matches = new TextSearch("dolor").findAll(pl.snapshot(), 0, pl.length());
+        long scanMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        int count = pl.replaceAll(matches, 5, "pain");
+        long replaceMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("%8d replacements: %6d ms scan, %6d ms replace%n", count, scanMillis, replaceMillis);
+    }
+
+    @Test
+    public void indexedSearchCost() throws Exception {
+        Random random = new Random(1);
+        String[] words = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < INDEXED_WORDS; i++) {
+            sb.append(random.nextInt(1_000_000) == 0 ? "zebrafish" : words[random.nextInt(words.length)]);
+            sb.append(random.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        File file = File.createTempFile("indexed", ".txt");
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), sb);
+        sb = null;
+        new File(file.getParentFile(), "." + file.getName() + ".trigrams").deleteOnExit();
+        PieceList pl = new PieceList(new Piece(file, 0, file.length()));
+        TextSearch search = new TextSearch("zebrafish");
+
+        long start = System.nanoTime();
+        int count = search.findAll(pl.snapshot(), 0, pl.length()).length;
+        long scanMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        pl.indexTrigrams().get();
+        long buildMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        PieceList reopened = new PieceList(new Piece(file, 0, file.length()));
+        reopened.indexTrigrams().get();
+        long openMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        search.findAll(reopened.snapshot(), 0, reopened.length());
+        long indexedMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("%8d matches: %6d ms scan, %6d ms index build, %6d ms reopen, %6d ms indexed%n",
+                count, scanMillis, buildMillis, openMillis, indexedMillis);
+    }
+}
@@ -1,19 +1,45 @@
-import org.junit.jupiter.api.BeforeEach;
+import javafx.scene.paint.Paint;
+import javafx.scene.text.Font;
 import org.junit.jupiter.api.Test;
+import text.DocumentSearch;
+import text.Journal;
+import text.MatchIndex;
 import text.Piece;
+import text.PieceCursor;
 import text.PieceList;
+import text.RegexSearch;
+import text.Snapshot;
+import text.StyleRun;
+import text.StyleTable;
+import text.TextSearch;
+import text.TextSequence;
+import text.UpdateEvent;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-public class PieceListTest {
-    @BeforeEach
-    public void beforeEach() throws IOException {
-        new File(".scratch").delete();
-        new File(".scratch").createNewFile();
-    }
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+public class PieceListTest {
     @Test
     public void test() throws IOException {
         File originalFile = new File("test-files/one-line.txt");
@@ -35,6 +61,822 @@ public class PieceListTest {
         printPieceList(pl);
     }
 
+    @Test
+    public void randomEdits() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        Piece first = new Piece(originalFile, 0, (int) originalFile.length());
+        PieceList pl = new PieceList(first);
+        StringBuilder expected = new StringBuilder(Files.readString(originalFile.toPath(), StandardCharsets.US_ASCII));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            int position = random.nextInt(expected.length() + 1);
+            if (random.nextInt(3) == 0 && position < expected.length()) {
+                int to = Math.min(expected.length(), position + random.nextInt(3) + 1);
+                pl.delete(position, to);
+                expected.delete(position, to);
+            } else {
+                char c = (char) ('a' + random.nextInt(26));
+                pl.insert(position, c);
+                expected.insert(position, c);
+            }
+        }
+
+        assertEquals(expected.length(), pl.getTotalLength());
+        for (int i = 0; i < expected.length(); i++) {
+            assertEquals(expected.charAt(i), pl.readCharAt(i));
+        }
+        assertEquals('\0', pl.readCharAt(expected.length()));
+        assertEquals(expected.toString(), pl.readRange(0, pl.getTotalLength()));
+        assertEquals(expected.substring(100, 900), pl.readRange(100, 900));
+    }
+
+    @Test
+    public void arrayBackend() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        Piece first = new Piece(originalFile, 0, (int) originalFile.length());
+        PieceList tree = new PieceList(first, PieceList.Backend.TREE);
+        PieceList arrays = new PieceList(first, PieceList.Backend.ARRAYS);
+
+        // enough edits to spread the pieces over several blocks of the arrays
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            int position = random.nextInt(tree.getTotalLength() + 1);
+            if (random.nextInt(4) == 0 && position < tree.getTotalLength()) {
+                int to = Math.min(tree.getTotalLength(), position + random.nextInt(3) + 1);
+                tree.delete(position, to);
+                arrays.delete(position, to);
+            } else {
+                String s = random.nextInt(5) == 0 ? "\n" : String.valueOf((char) ('a' + random.nextInt(26)));
+                tree.insert(position, s);
+                arrays.insert(position, s);
+            }
+            if (i % 100 == 0) {
+                assertEquals(true, tree.undo());
+                assertEquals(true, arrays.undo());
+            }
+        }
+
+        String expected = tree.readRange(0, tree.getTotalLength());
+        assertEquals(expected, arrays.readRange(0, arrays.getTotalLength()));
+        assertEquals(tree.getPieceCount(), arrays.getPieceCount());
+        assertEquals(true, arrays.getPieceCount() > 2 * 1024);
+        for (int i = 0; i <= expected.length(); i += 7) {
+            assertEquals(tree.lineOfPosition(i), arrays.lineOfPosition(i));
+        }
+        for (int line = 0; line <= tree.lineOfPosition(expected.length()) + 1; line++) {
+            assertEquals(tree.positionOfLine(line), arrays.positionOfLine(line));
+        }
+
+        PieceCursor cursor = arrays.cursor(expected.length() / 2);
+        StringBuilder forward = new StringBuilder();
+        while (cursor.hasNext()) {
+            forward.append(cursor.next());
+        }
+        assertEquals(expected.substring(expected.length() / 2), forward.toString());
+        while (cursor.hasPrevious()) {
+            forward.append(cursor.previous());
+        }
+        assertEquals(0, cursor.position());
+
+        arrays.compact();
+        assertEquals(expected, arrays.readRange(0, arrays.getTotalLength()));
+    }
+
+    @Test
+    public void cursor() throws IOException {
+        File originalFile = new File("test-files/few-lines.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        for (int i = 0; i < 50; i++) {
+            pl.insert(i * 3, (char) ('a' + i % 26));
+        }
+        String expected = pl.readRange(0, pl.getTotalLength());
+
+        PieceCursor cursor = pl.cursor(10);
+        StringBuilder forward = new StringBuilder();
+        while (cursor.hasNext()) {
+            forward.append(cursor.next());
+        }
+        assertEquals(expected.substring(10), forward.toString());
+
+        StringBuilder backward = new StringBuilder();
+        while (cursor.hasPrevious()) {
+            backward.append(cursor.previous());
+        }
+        assertEquals(expected, backward.reverse().toString());
+        assertEquals(0, cursor.position());
+    }
+
+    @Test
+    public void search() throws IOException {
+        // a text of a few parts of a parallel search with many partial matches
+        Random random = new Random(3);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2_500_000; i++) {
+            sb.append(random.nextInt(8) == 0 ? 'c' : (char) ('a' + random.nextInt(2)));
+        }
+        File file = File.createTempFile("search", ".txt");
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), sb, StandardCharsets.UTF_8);
+        PieceList pl = new PieceList(new Piece(file, 0, (int) file.length()));
+        // pieces from the add buffer, some of them completing matches across piece boundaries
+        for (int i = 0; i < 200; i++) {
+            int position = random.nextInt(sb.length());
+            String s = random.nextBoolean() ? "ab" : "c";
+            pl.insert(position, s);
+            sb.insert(position, s);
+        }
+        String expected = sb.toString();
+        Snapshot snapshot = pl.snapshot();
+
+        for (String pattern : new String[]{"c", "abcab", "babbac", "cccc", "x"}) {
+            TextSearch search = new TextSearch(pattern);
+            for (int i = 0; i < 50; i++) {
+                int from = random.nextInt(expected.length() + 1);
+                assertEquals(expected.indexOf(pattern, from), search.findNext(snapshot, from));
+                assertEquals(expected.lastIndexOf(pattern, from - 1), search.findPrevious(snapshot, from));
+            }
+            assertEquals(expected.indexOf(pattern), search.findNext(snapshot, 0));
+            assertEquals(expected.lastIndexOf(pattern), search.findPrevious(snapshot, expected.length()));
+
+            List<Long> all = new ArrayList<>();
+            for (int i = expected.indexOf(pattern); i >= 0; i = expected.indexOf(pattern, i + 1)) {
+                all.add((long) i);
+            }
+            assertEquals(all.size(), search.count(snapshot));
+            assertEquals(all, Arrays.stream(search.findAll(snapshot, 0, expected.length())).boxed().toList());
+            assertEquals(expected.indexOf(pattern), search.findNextParallel(snapshot, 0));
+            assertEquals(expected.indexOf(pattern, 1_500_000), search.findNextParallel(snapshot, 1_500_000));
+        }
+    }
+
+    @Test
+    public void trigramIndex() throws Exception {
+        Random random = new Random(7);
+        String[] words = {"lorem", "ipsum", "grün", "€uro", "\uD834\uDD1E", "dolor", "\n"};
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 3_000_000) {
+            sb.append(random.nextInt(100_000) == 0 ? "zebra" : words[random.nextInt(words.length)]).append(' ');
+        }
+        File file = File.createTempFile("trigrams", ".txt");
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), sb, StandardCharsets.UTF_8);
+        File sidecar = new File(file.getParentFile(), "." + file.getName() + ".trigrams");
+        sidecar.deleteOnExit();
+
+        PieceList pl = new PieceList(new Piece(file, 0, file.length()));
+        pl.indexTrigrams().get();
+        // matches within the add buffer and across piece boundaries
+        for (int i = 0; i < 100; i++) {
+            int position = random.nextInt(sb.length());
+            String s = i % 2 == 0 ? "zeb" : "ra grün €";
+            pl.insert(position, s);
+            sb.insert(position, s);
+        }
+        String expected = sb.toString();
+        for (String pattern : new String[]{"zebra", "grün €uro", "\uD834\uDD1E lorem", "ab", "missing"}) {
+            List<Long> all = new ArrayList<>();
+            for (int i = expected.indexOf(pattern); i >= 0; i = expected.indexOf(pattern, i + 1)) {
+                all.add((long) i);
+            }
+            long[] found = new TextSearch(pattern).findAll(pl.snapshot(), 0, expected.length());
+            assertEquals(all, Arrays.stream(found).boxed().toList());
+        }
+
+        // the index file is reused for the same version of the document
+        long modified = sidecar.lastModified();
+        PieceList reopened = new PieceList(new Piece(file, 0, file.length()));
+        reopened.indexTrigrams().get();
+        assertEquals(modified, sidecar.lastModified());
+        Snapshot snapshot = reopened.snapshot();
+        String original = snapshot.readRange(0, snapshot.length());
+        assertEquals(original.indexOf("zebra"), new TextSearch("zebra").findAll(snapshot, 0, snapshot.length())[0]);
+
+        // a saved version is indexed with its own contents
+        pl.save();
+        pl.indexTrigrams().get();
+        PieceList saved = new PieceList(new Piece(file, 0, file.length()));
+        saved.indexTrigrams().get();
+        List<Long> all = new ArrayList<>();
+        for (int i = expected.indexOf("zebra"); i >= 0; i = expected.indexOf("zebra", i + 1)) {
+            all.add((long) i);
+        }
+        for (PieceList p : List.of(pl, saved)) {
+            long[] found = new TextSearch("zebra").findAll(p.snapshot(), 0, p.length());
+            assertEquals(all, Arrays.stream(found).boxed().toList());
+        }
+    }
+
+    @Test
+    public void matchIndex() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        MatchIndex index = new MatchIndex(pl, "aba");
+        pl.addUpdateEventListener(index);
+
+        Random random = new Random(5);
+        for (int i = 0; i < 1000; i++) {
+            int position = random.nextInt(pl.getTotalLength() + 1);
+            if (i % 100 == 99) {
+                pl.undo();
+            } else if (i % 100 == 0 && i > 0) {
+                pl.redo();
+            } else if (i % 50 == 49) {
+                pl.beginBatch();
+                pl.insert(position, "ab");
+                pl.delete(0, 2);
+                pl.insert(pl.getTotalLength(), "a");
+                pl.commit();
+            } else if (random.nextInt(3) == 0 && position < pl.getTotalLength()) {
+                pl.delete(position, Math.min(pl.getTotalLength(), position + random.nextInt(4) + 1));
+            } else {
+                pl.insert(position, random.nextBoolean() ? "a" : "b");
+            }
+
+            String expected = pl.readRange(0, pl.getTotalLength());
+            List<Long> all = new ArrayList<>();
+            for (int j = expected.indexOf("aba"); j >= 0; j = expected.indexOf("aba", j + 1)) {
+                all.add((long) j);
+            }
+            assertEquals(all, Arrays.stream(index.matches(0, expected.length())).boxed().toList());
+            assertEquals(all.size(), index.count());
+            int from = random.nextInt(expected.length() + 1);
+            assertEquals(expected.indexOf("aba", from), index.next(from));
+            assertEquals(expected.lastIndexOf("aba", from - 1), index.previous(from));
+        }
+    }
+
+    @Test
+    public void regexSearch() throws Exception {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        for (int i = 0; i < 100; i++) {
+            pl.insert(i * 11, i % 3 == 0 ? "\n" : "x7");
+        }
+        String expected = pl.readRange(0, pl.getTotalLength());
+        Snapshot snapshot = pl.snapshot();
+
+        TextSequence sequence = new TextSequence(snapshot, 0, snapshot.length());
+        for (int i = expected.length() - 1; i >= 0; i -= 3) {
+            assertEquals(expected.charAt(i), sequence.charAt(i));
+        }
+        CharSequence sub = sequence.subSequence(100, 600).subSequence(50, 300);
+        assertEquals(expected.substring(150, 400), sub.toString());
+
+        Pattern pattern = Pattern.compile("^\\w+|x\\d+", Pattern.MULTILINE);
+        List<RegexSearch.Match> all = new ArrayList<>();
+        Matcher m = pattern.matcher(expected);
+        while (m.find()) {
+            all.add(new RegexSearch.Match(m.start(), m.end()));
+        }
+        assertEquals(all, new RegexSearch(pattern).findAll(snapshot));
+
+        CompletableFuture<List<RegexSearch.Match>> result = new CompletableFuture<>();
+        new RegexSearch(pattern).start(snapshot, result::complete);
+        assertEquals(all, result.get());
+
+        RegexSearch cancelled = new RegexSearch(pattern);
+        cancelled.cancel();
+        assertThrows(CancellationException.class, () -> cancelled.findAll(snapshot));
+    }
+
+    @Test
+    public void textSequenceBackwards() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        for (int i = 0; i < 1000; i++) {
+            // pieces of different lengths, so chunks and pieces end at different positions
+            pl.insert(pl.getTotalLength(), "line " + i + " ä€\uD83D\uDE00 ".repeat(i % 5 + 1) + "\n");
+        }
+        String expected = pl.readRange(0, pl.getTotalLength());
+        assertEquals(true, expected.length() > 4 * 4096);
+
+        TextSequence sequence = new TextSequence(pl.snapshot(), 0, expected.length());
+        for (int i = expected.length() - 1; i >= 0; i--) {
+            assertEquals(expected.charAt(i), sequence.charAt(i));
+        }
+        // a matcher stepping back and forth, and jumping
+        Random random = new Random(3);
+        int index = expected.length() / 2;
+        for (int i = 0; i < 20000; i++) {
+            index = random.nextInt(100) == 0
+                    ? random.nextInt(expected.length())
+                    : Math.clamp(index + random.nextInt(9) - 5, 0, expected.length() - 1);
+            assertEquals(expected.charAt(index), sequence.charAt(index));
+        }
+    }
+
+    @Test
+    public void documentSearch() throws Exception {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList a = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        PieceList b = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        b.insert(0, "dolor\nsit dolor amet\n");
+        Map<String, Snapshot> documents = new LinkedHashMap<>();
+        documents.put("a", a.snapshot());
+        documents.put("b", b.snapshot());
+
+        List<DocumentSearch.Hit<String>> hits = Collections.synchronizedList(new ArrayList<>());
+        DocumentSearch<String> search = new DocumentSearch<>("dolor");
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        search.start(documents, hits::addAll, () -> done.complete(null));
+        done.get();
+
+        TextSearch expected = new TextSearch("dolor");
+        for (Map.Entry<String, Snapshot> d : documents.entrySet()) {
+            long[] positions = hits.stream()
+                    .filter(h -> h.document().equals(d.getKey()))
+                    .mapToLong(DocumentSearch.Hit::position)
+                    .toArray();
+            assertEquals(Arrays.toString(expected.findAll(d.getValue(), 0, d.getValue().length())),
+                    Arrays.toString(positions));
+        }
+        assertEquals(hits.size(), search.count());
+        DocumentSearch.Hit<String> second = hits.stream().filter(h -> h.document().equals("b")).toList().get(1);
+        assertEquals(new DocumentSearch.Hit<>("b", 10, 1, "sit dolor amet"), second);
+
+        List<DocumentSearch.Hit<String>> late = new ArrayList<>();
+        DocumentSearch<String> cancelled = new DocumentSearch<>("dolor");
+        cancelled.cancel();
+        cancelled.start(documents, late::addAll, () -> late.add(null));
+        Thread.sleep(100);
+        assertEquals(0, late.size());
+    }
+
+    @Test
+    public void replaceAll() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        for (PieceList.Backend backend : PieceList.Backend.values()) {
+            PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()), backend);
+            pl.insert(0, "in");
+            pl.setStyle(0, 2, Font.font("Arial", 12), null);
+            String original = pl.readRange(0, pl.getTotalLength());
+            List<UpdateEvent> events = new ArrayList<>();
+            pl.addUpdateEventListener(events::add);
+
+            long[] matches = new TextSearch("in").findAll(pl.snapshot(), 0, pl.length());
+            assertEquals(matches.length, pl.replaceAll(matches, 2, "OUT"));
+            assertEquals(original.replace("in", "OUT"), pl.readRange(0, pl.getTotalLength()));
+            assertEquals(1, events.size());
+            UpdateEvent.Batch batch = (UpdateEvent.Batch) events.getFirst();
+            assertEquals(matches.length, batch.changes().size());
+            for (int i = 0; i < matches.length; i++) {
+                assertEquals(new UpdateEvent.Change(matches[i] + i, 2, 3), batch.changes().get(i));
+            }
+            // replacements take the style of the character before them, or of the first one at the start
+            assertEquals(List.of(12.0), pl.getStyleRuns(0, 3).stream().map(r -> r.font().getSize()).toList());
+
+            assertEquals(true, pl.undo());
+            assertEquals(original, pl.readRange(0, pl.getTotalLength()));
+
+            // overlapping sections are skipped, empty replacements remove the sections
+            pl.replaceAll(new long[]{0, 1, 2}, 2, "");
+            assertEquals(original.substring(4), pl.readRange(0, pl.getTotalLength()));
+        }
+    }
+
+    @Test
+    public void multibyteText() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append(i % 7 == 0 ? "Grüße " : i % 11 == 0 ? "€ \uD83D\uDE00 " : "ascii ");
+        }
+        String content = sb.toString();
+        File utf8File = File.createTempFile("utf8", ".txt");
+        utf8File.deleteOnExit();
+        Files.writeString(utf8File.toPath(), content, StandardCharsets.UTF_8);
+
+        PieceList pl = new PieceList(new Piece(utf8File, 0, (int) utf8File.length()));
+        assertEquals(content.length(), pl.getTotalLength());
+        for (int i = 0; i < content.length(); i += 7) {
+            assertEquals(content.charAt(i), pl.readCharAt(i));
+        }
+        assertEquals(content, pl.readRange(0, pl.getTotalLength()));
+
+        pl.insert(5000, "ä");
+        pl.delete(100, 200);
+        String expected = new StringBuilder(content).insert(5000, "ä").delete(100, 200).toString();
+        assertEquals(expected, pl.readRange(0, pl.getTotalLength()));
+    }
+
+    @Test
+    public void largeFile() throws IOException {
+        // a sparse file of zero bytes with some text behind the first 2.5 GB
+        long offset = 5L << 29;
+        File large = File.createTempFile("large", ".txt");
+        large.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(large, "rw")) {
+            raf.seek(offset);
+            raf.write("Grüße\nend".getBytes(StandardCharsets.UTF_8));
+        }
+
+        // only the start is loaded right away
+        PieceList pl = PieceList.open(large);
+        List<UpdateEvent> events = new ArrayList<>();
+        pl.addUpdateEventListener(events::add);
+        assertEquals(true, pl.isLarge());
+        assertEquals(true, pl.length() < offset);
+        assertEquals('\0', pl.readCharAt(0));
+
+        long loaded = pl.length();
+        pl.finishLoading();
+        assertEquals(List.of(new UpdateEvent.Load(loaded, offset + 9)), events);
+        assertEquals(offset + 9, pl.length());
+        assertEquals("Grüße\nend", pl.readRange(offset, pl.length()));
+        assertEquals(1, pl.lineOfPosition(pl.length()));
+        assertEquals(offset + 6, pl.positionOfLine(1L));
+
+        pl.insert(pl.length(), "!");
+        pl.delete(offset + 1, offset + 3);
+        assertEquals("Gße\nend!", pl.readRange(offset, pl.length()));
+        large.delete();
+    }
+
+    @Test
+    public void lineIndex() throws IOException {
+        File originalFile = new File("test-files/many-lines.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        pl.insert(10, "one\ntwo\n");
+        pl.delete(500, 2000);
+        pl.insert(3000, '\n');
+        String text = pl.readRange(0, pl.getTotalLength());
+
+        List<Integer> lineStarts = new ArrayList<>(List.of(0));
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lineStarts.add(i + 1);
+            }
+        }
+
+        assertEquals(lineStarts.size(), pl.lineCount());
+        for (int line = 0; line < lineStarts.size(); line++) {
+            assertEquals((int) lineStarts.get(line), pl.positionOfLine(line));
+        }
+        assertEquals(-1, pl.positionOfLine(lineStarts.size()));
+        for (int pos = 0; pos <= text.length(); pos += 13) {
+            int expectedLine = (int) text.substring(0, pos).chars().filter(c -> c == '\n').count();
+            assertEquals(expectedLine, pl.lineOfPosition(pos));
+        }
+    }
+
+    @Test
+    public void coalescing() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        String original = pl.readRange(0, pl.getTotalLength());
+
+        // typing and deleting in the middle of a piece leaves one piece again
+        pl.insert(100, "abc");
+        assertEquals(3, pl.getPieceCount());
+        pl.delete(100, 103);
+        assertEquals(1, pl.getPieceCount());
+
+        // setting the same style twice does not fragment the text
+        pl.setStyle(10, 20, PieceList.defaultFont, PieceList.defaultColor);
+        assertEquals(1, pl.getPieceCount());
+
+        for (int i = 0; i < 100; i++) {
+            pl.insert(i * 5, 'x');
+            pl.delete(i * 5, i * 5 + 1);
+        }
+        pl.compact();
+        assertEquals(1, pl.getPieceCount());
+        assertEquals(original, pl.readRange(0, pl.getTotalLength()));
+    }
+
+    @Test
+    public void styleRuns() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        int length = pl.getTotalLength();
+        Font big = Font.font("Arial", 48);
+        Paint red = Paint.valueOf("ff0000");
+
+        pl.setStyle(10, 30, big, null);
+        pl.setStyle(20, 40, null, red);
+        assertEquals(List.of(
+                run(0, 10, PieceList.defaultFont, PieceList.defaultColor),
+                run(10, 20, big, PieceList.defaultColor),
+                run(20, 30, big, red),
+                run(30, 40, PieceList.defaultFont, red),
+                run(40, length, PieceList.defaultFont, PieceList.defaultColor)
+        ), pl.getStyleRuns(0, length));
+        assertEquals(List.of(run(25, 28, big, red)), pl.getStyleRuns(25, 28));
+
+        // inserted text takes the style of the character before it, deleted text moves the runs behind it
+        pl.insert(30, "abc");
+        assertEquals(run(20, 33, big, red), pl.getStyleRuns(0, length).get(2));
+        pl.delete(5, 35);
+        assertEquals(List.of(
+                run(0, 5, PieceList.defaultFont, PieceList.defaultColor),
+                run(5, 13, PieceList.defaultFont, red),
+                run(13, length - 27, PieceList.defaultFont, PieceList.defaultColor)
+        ), pl.getStyleRuns(0, pl.getTotalLength()));
+
+        // styling the whole text leaves a single run
+        pl.setStyle(0, pl.getTotalLength(), big, red);
+        assertEquals(1, pl.getStyleRuns(0, pl.getTotalLength()).size());
+        PieceCursor c = pl.cursor(0);
+        c.next();
+        assertEquals(big, c.font());
+        assertEquals(red, c.color());
+    }
+
+    @Test
+    public void save() throws IOException {
+        File file = Files.createTempFile("save", ".txt").toFile();
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), "Grüße aus Linz\nzweite Zeile\n", StandardCharsets.UTF_8);
+        PieceList pl = new PieceList(new Piece(file, 0, (int) file.length()));
+
+        pl.insert(0, "€ ");
+        pl.delete(7, 11);
+        pl.insert(pl.getTotalLength(), "\uD83D\uDE00");
+        String expected = pl.readRange(0, pl.getTotalLength());
+        pl.save();
+
+        // the saved file holds only the text, which is now a single piece
+        assertEquals(expected, Files.readString(file.toPath(), StandardCharsets.UTF_8));
+        assertEquals(1, pl.getPieceCount());
+        assertEquals(expected, pl.readRange(0, pl.getTotalLength()));
+
+        // saving again reads from the file that is replaced
+        pl.insert(3, "x");
+        Snapshot before = pl.snapshot();
+        pl.save();
+        assertEquals(pl.readRange(0, pl.getTotalLength()), Files.readString(file.toPath(), StandardCharsets.UTF_8));
+
+        // the mappings of earlier versions are dropped, but snapshots taken before keep reading them
+        pl.insert(0, "y");
+        pl.save();
+        assertEquals(expected.substring(0, 3) + "x" + expected.substring(3), before.readRange(0, before.length()));
+    }
+
+    @Test
+    public void snapshotOnOtherThread() throws Exception {
+        File originalFile = new File("test-files/lorem.txt");
+        for (PieceList.Backend backend : PieceList.Backend.values()) {
+            PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()), backend);
+            long lines = pl.snapshot().lineCount();
+            // snapshots and their number of lines, read while the add buffer and its line breaks keep growing
+            BlockingQueue<Object[]> published = new LinkedBlockingQueue<>();
+            FutureTask<Integer> reader = new FutureTask<>(() -> {
+                int checked = 0;
+                for (Object[] p = published.take(); p.length > 0; p = published.take()) {
+                    Snapshot s = (Snapshot) p[0];
+                    long expected = (long) p[1];
+                    assertEquals(expected, s.lineCount());
+                    assertEquals(expected - 1, s.lineOfPosition(s.length()));
+                    assertEquals('\n', s.readCharAt(s.positionOfLine(expected - 1) - 1));
+                    checked++;
+                }
+                return checked;
+            });
+            new Thread(reader).start();
+            for (int i = 0; i < 20_000; i++) {
+                // typed text, which extends the same piece
+                pl.insert(i * 5L, "line\n");
+                lines++;
+                if (i % 4 == 0) {
+                    published.add(new Object[]{pl.snapshot(), lines});
+                }
+            }
+            published.add(new Object[0]);
+            assertEquals(5_000, (int) reader.get());
+        }
+    }
+
+    @Test
+    public void separateAddBuffers() throws IOException {
+        File file = Files.createTempFile("tabs", ".txt").toFile();
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), "text\n", StandardCharsets.UTF_8);
+        PieceList first = new PieceList(new Piece(file, 0, (int) file.length()));
+        PieceList second = new PieceList(new Piece(file, 0, (int) file.length()), PieceList.Backend.TREE, true);
+
+        // a surrogate pair that spans two chunks of the add buffer
+        String large = "a".repeat((1 << 20) - 1) + "\uD83D\uDE00";
+        first.insert(0, large);
+        second.insert(0, "other ");
+        assertEquals(large + "text\n", first.readRange(0, first.getTotalLength()));
+        assertEquals("other text\n", second.readRange(0, second.getTotalLength()));
+
+        // the spill file of the second document is only deleted once its last reader is done
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        int spillFiles = tmp.list((dir, name) -> name.startsWith("ssw_editor-")).length;
+        Snapshot beforeClose = second.snapshot();
+        assertEquals(true, beforeClose.retain());
+        second.close();
+        assertEquals(false, second.snapshot().retain());
+        assertEquals(large + "text\n", first.readRange(0, first.getTotalLength()));
+        assertEquals("other text\n", beforeClose.readRange(0, beforeClose.length()));
+        assertEquals(spillFiles, tmp.list((dir, name) -> name.startsWith("ssw_editor-")).length);
+        beforeClose.release();
+        assertEquals(spillFiles - 1, tmp.list((dir, name) -> name.startsWith("ssw_editor-")).length);
+        first.save();
+        assertEquals(large + "text\n", Files.readString(file.toPath(), StandardCharsets.UTF_8));
+        first.close();
+    }
+
+    @Test
+    public void styleFile() throws IOException {
+        File file = Files.createTempFile("styles", ".txt").toFile();
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), "some styled text\n".repeat(100), StandardCharsets.UTF_8);
+        Font big = Font.font("Arial", 48);
+        Paint red = Paint.valueOf("ff0000");
+
+        PieceList pl = PieceList.open(file);
+        for (int i = 0; i < 100; i++) {
+            pl.setStyle(i * 17, i * 17 + 4, i % 2 == 0 ? big : null, i % 3 == 0 ? red : null);
+        }
+        pl.save();
+        new File(file.getParentFile(), "." + file.getName() + ".styles").deleteOnExit();
+
+        PieceList reopened = PieceList.open(file);
+        assertEquals(pl.readRange(0, pl.getTotalLength()), reopened.readRange(0, reopened.getTotalLength()));
+        assertEquals(pl.getStyleRuns(0, pl.getTotalLength()), reopened.getStyleRuns(0, reopened.getTotalLength()));
+
+        // the style file is ignored once the document was changed by another program
+        Files.writeString(file.toPath(), "changed", StandardOpenOption.APPEND);
+        assertEquals(1, PieceList.open(file).getStyleRuns(0, 10).size());
+    }
+
+    @Test
+    public void legacyStyleLine() throws IOException {
+        File file = Files.createTempFile("legacy", ".txt").toFile();
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), "0,3,Arial,48.0,0xff0000ff|3,8,Arial,32.0,0x000000ff|\nÄbc defgh", StandardCharsets.UTF_8);
+
+        PieceList pl = PieceList.open(file);
+        assertEquals("Äbc defgh", pl.readRange(0, pl.getTotalLength()));
+        assertEquals(List.of(
+                run(0, 3, Font.font("Arial", 48), Paint.valueOf("ff0000")),
+                run(3, 9, PieceList.defaultFont, PieceList.defaultColor)
+        ), pl.getStyleRuns(0, pl.getTotalLength()));
+    }
+
+    @Test
+    public void textLineLikeLegacyStyles() throws IOException {
+        for (String text : List.of("1|\nabc", "2024|\nabc", "a,b|\nabc")) {
+            File file = Files.createTempFile("legacy", ".txt").toFile();
+            file.deleteOnExit();
+            Files.writeString(file.toPath(), text, StandardCharsets.UTF_8);
+
+            PieceList pl = PieceList.open(file);
+            assertEquals(text, pl.readRange(0, pl.getTotalLength()));
+        }
+    }
+
+    @Test
+    public void journal() throws IOException {
+        File file = Files.createTempFile("journal", ".txt").toFile();
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), "first line\nsecond line\n", StandardCharsets.UTF_8);
+        Font big = Font.font("Arial", 48);
+
+        PieceList pl = new PieceList(new Piece(file, 0, (int) file.length()));
+        Journal journal = Journal.open(file, pl);
+        pl.insert(5, "ÄÖÜ");
+        pl.delete(0, 2);
+        pl.setStyle(3, 9, big, null);
+        for (int i = 0; i < 1000; i++) {
+            pl.insert(i % pl.getTotalLength(), 'x');
+        }
+        pl.beginBatch();
+        pl.insert(3, "batch");
+        pl.setStyle(0, 4, null, Paint.valueOf("ff0000"));
+        pl.delete(10, 12);
+        pl.commit();
+        pl.undo();
+        pl.undo();
+        pl.redo();
+        journal.close();
+
+        // reopening the unsaved document replays the edits
+        PieceList reopened = new PieceList(new Piece(file, 0, (int) file.length()));
+        journal = Journal.open(file, reopened);
+        assertEquals(pl.readRange(0, pl.getTotalLength()), reopened.readRange(0, reopened.getTotalLength()));
+        assertEquals(pl.getStyleRuns(0, pl.getTotalLength()), reopened.getStyleRuns(0, reopened.getTotalLength()));
+
+        // after saving there is nothing to replay
+        reopened.save();
+        journal.reset();
+        journal.close();
+        String saved = Files.readString(file.toPath(), StandardCharsets.UTF_8);
+        PieceList afterSave = new PieceList(new Piece(file, 0, (int) file.length()));
+        Journal.open(file, afterSave).close();
+        assertEquals(saved, afterSave.readRange(0, afterSave.getTotalLength()));
+    }
+
+    @Test
+    public void undoRedo() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        String original = pl.readRange(0, pl.getTotalLength());
+
+        // consecutive typed characters are undone at once
+        for (char c : "hello".toCharArray()) {
+            pl.insert(10 + pl.getTotalLength() - original.length(), c);
+        }
+        String typed = pl.readRange(0, pl.getTotalLength());
+        pl.delete(0, 1000);
+        String deleted = pl.readRange(0, pl.getTotalLength());
+        pl.setStyle(0, 10, Font.font("Arial", 48), null);
+
+        assertEquals(true, pl.undo());
+        assertEquals(1, pl.getStyleRuns(0, pl.getTotalLength()).size());
+        assertEquals(true, pl.undo());
+        assertEquals(typed, pl.readRange(0, pl.getTotalLength()));
+        assertEquals(true, pl.undo());
+        assertEquals(original, pl.readRange(0, pl.getTotalLength()));
+        assertEquals(false, pl.undo());
+
+        assertEquals(true, pl.redo());
+        assertEquals(typed, pl.readRange(0, pl.getTotalLength()));
+        assertEquals(true, pl.redo());
+        assertEquals(deleted, pl.readRange(0, pl.getTotalLength()));
+
+        // a new edit discards the undone edits
+        pl.insert(0, "new");
+        assertEquals(false, pl.redo());
+        pl.undo();
+        assertEquals(deleted, pl.readRange(0, pl.getTotalLength()));
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        String original = pl.readRange(0, pl.getTotalLength());
+        Snapshot snapshot = pl.snapshot();
+
+        // read the snapshot on another thread while the piece list is edited
+        FutureTask<Void> reader = new FutureTask<>(() -> {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(original, snapshot.readRange(0, snapshot.getTotalLength()));
+            }
+            return null;
+        });
+        new Thread(reader).start();
+        for (int i = 0; i < 10000; i++) {
+            pl.insert(i % 500, (char) ('a' + i % 26));
+        }
+        pl.delete(0, 100);
+        reader.get();
+
+        assertEquals(original, snapshot.readRange(0, snapshot.getTotalLength()));
+        assertEquals(original.length() + 9900, pl.getTotalLength());
+    }
+
+    @Test
+    public void batch() throws IOException {
+        File originalFile = new File("test-files/lorem.txt");
+        PieceList pl = new PieceList(new Piece(originalFile, 0, (int) originalFile.length()));
+        String original = pl.readRange(0, pl.getTotalLength());
+        List<UpdateEvent> events = new ArrayList<>();
+        pl.addUpdateEventListener(events::add);
+
+        Random random = new Random(7);
+        pl.beginBatch();
+        for (int i = 0; i < 1000; i++) {
+            int pos = random.nextInt(pl.getTotalLength());
+            if (random.nextBoolean()) {
+                pl.insert(pos, "ab".repeat(random.nextInt(3)));
+            } else {
+                pl.delete(pos, Math.min(pl.getTotalLength(), pos + random.nextInt(4)));
+            }
+        }
+        pl.commit();
+        String edited = pl.readRange(0, pl.getTotalLength());
+
+        // a single event whose changes turn the original text into the edited one
+        assertEquals(1, events.size());
+        List<UpdateEvent.Change> changes = ((UpdateEvent.Batch) events.getFirst()).changes();
+        StringBuilder rebuilt = new StringBuilder();
+        int originalPosition = 0;
+        int end = -1;
+        for (UpdateEvent.Change c : changes) {
+            assertEquals(true, c.from() > end);
+            int from = (int) c.from();
+            int unchanged = from - rebuilt.length();
+            rebuilt.append(original, originalPosition, originalPosition + unchanged);
+            originalPosition += unchanged + (int) c.removed();
+            rebuilt.append(edited, from, from + (int) c.inserted());
+            end = from + (int) c.inserted();
+        }
+        rebuilt.append(original, originalPosition, original.length());
+        assertEquals(edited, rebuilt.toString());
+
+        // the batch is undone at once
+        pl.undo();
+        assertEquals(original, pl.readRange(0, pl.getTotalLength()));
+    }
+
+    private static StyleRun run(int from, int to, Font font, Paint color) {
+        return new StyleRun(from, to, StyleTable.intern(font, color));
+    }
+
     private void printPieceList(PieceList pl) {
         int position = 0;
         char character = pl.readCharAt(position);